@@ -21,18 +21,28 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.IBinder;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Switch;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -40,11 +50,18 @@ import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Collections;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This fragment controls Bluetooth to communicate with other devices.
@@ -56,11 +73,67 @@ public class BluetoothConnectFragment extends Fragment {
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 200;
     private static final int REQUEST_ENABLE_BT = 300;
+    private static final int REQUEST_ADD_DEVICE = 400;
+    private static final int REQUEST_REPLAY_TRANSCRIPT = 500;
+
+    // Address of the device connected at launch, see newInstance()
+    private static final String ARG_FAST_CONNECT_ADDRESS = "fast_connect_address";
+
+    // Symbols the Junior font shows, the frames are mapped to them when encoded
+    private static final DeviceCharset DEVICE_CHARSET = DeviceCharset.LATIN1;
+
+    // Live streaming timing defaults, the preferences below override them
+    private static final long STREAM_DEBOUNCE_MS = 150;
+    private static final long STREAM_MAX_LATENCY_MS = 500;
+    private static final int STREAM_MAX_FRAMES_PER_SECOND = 5;
+
+    // Preferences tuning the live streaming to the link and the reader. Set with
+    // the launch extras of the same names, e.g. from adb:
+    // am start -n com.trivisio.junior.connect/.MainActivity --el debounce_ms 100
+    //     --el max_latency_ms 400 --ei max_frames_per_second 8
+    private static final String STREAM_PREFS_NAME = "streaming";
+    private static final String KEY_STREAM_DEBOUNCE_MS = "debounce_ms";
+    private static final String KEY_STREAM_MAX_LATENCY_MS = "max_latency_ms";
+    private static final String KEY_STREAM_MAX_FRAMES_PER_SECOND = "max_frames_per_second";
+
+    // Pacing of the frames of a text source: the cadence, the minimum time a
+    // line stays before the screen scrolls further, and the caption latency
+    private static final long SCHEDULER_FRAME_INTERVAL_MS = 100;
+    private static final long SCHEDULER_MIN_DWELL_MS = 800;
+    private static final long SCHEDULER_LATENCY_BUDGET_MS = 3000;
+
+    // How long connecting to the first of several Juniors to answer may take
+    private static final long CONNECT_RACE_TIMEOUT_MS = 15_000;
+
+    // How often the per-device status is refreshed in the fan-out mode
+    private static final long DEVICE_STATUS_REFRESH_MS = 1000;
+
+    // How often the send metrics overlay is refreshed
+    private static final long SEND_METRICS_REFRESH_MS = 1000;
+
+    // Playback speed of the replayed transcripts, 1 for real time
+    private static final double REPLAY_SPEED = 1.0;
+
+    // Recorded sessions, in the app files directory
+    private static final String SESSION_DIRECTORY = "sessions";
+    private static final String SESSION_SUFFIX = ".session";
+
+    // Playback speed of the session replays, a long click replays at full speed
+    private static final double SESSION_REPLAY_SPEED = 1.0;
 
     private Button mConnectButton;
     private Button mDisconnectButton;
+    private Button mAddDeviceButton;
+    private TextView mDeviceStatus;
     private Button mSendButton;
     private EditText mTextInput;
+    private Switch mStreamSwitch;
+    private Switch mMetricsSwitch;
+    private TextView mSendMetrics;
+    private Button mExportMetricsButton;
+    private Button mReplayButton;
+    private Switch mRecordSwitch;
+    private Button mReplaySessionButton;
 
     /**
      * Name of the connected device
@@ -82,12 +155,84 @@ public class BluetoothConnectFragment extends Fragment {
      */
     private BluetoothConnectService mConnectService = null;
 
-    private String oldValue;
+    /**
+     * Whether this fragment is bound to the ConnectionHostService
+     */
+    private boolean mBound;
+
+    /**
+     * Device connected at launch; the device list is only shown if that fails
+     */
+    private String mFastConnectAddress;
+
+    /**
+     * Ticker layout fed with the edits of the text input
+     */
+    private final TickerLayout mTickerLayout = new TickerLayout();
+
+    /**
+     * Encoder of the frames sent to the device, remembers the last frame sent
+     */
+    private final TickerEncoder mTickerEncoder = new TickerEncoder(DEVICE_CHARSET);
+
+    /**
+     * Handler for the delayed UI work
+     */
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Sends the ticker updates while the text is being edited, if enabled
+     */
+    private final TickerStreamer mTickerStreamer = new TickerStreamer(
+            mUiHandler, () -> onTextSend(true),
+            STREAM_DEBOUNCE_MS, STREAM_MAX_LATENCY_MS, STREAM_MAX_FRAMES_PER_SECOND);
+
+    /**
+     * Source of recognized text feeding the ticker instead of the text input, if any
+     */
+    private TextSource mTextSource;
+
+    /**
+     * Applies the results of the text source to the ticker layout
+     */
+    private final TranscriptAssembler mTranscriptAssembler = new TranscriptAssembler();
+
+    /**
+     * Paces the frames of the text source, null when there is no text source
+     */
+    private FrameScheduler mFrameScheduler;
+
+    /**
+     * Player of a recorded session, if one is being replayed
+     */
+    private SessionPlayer mSessionPlayer;
+
+    private final Runnable mApplyTranscript = () -> {
+        if (mTextSource != null && mTranscriptAssembler.apply(mTickerLayout)) {
+            mFrameScheduler.submit(mTickerLayout);
+        }
+    };
+
+    /**
+     * @param fastConnectAddress Address of the device being connected at launch,
+     *                           null to let the user pick one
+     */
+    public static BluetoothConnectFragment newInstance(String fastConnectAddress) {
+        BluetoothConnectFragment fragment = new BluetoothConnectFragment();
+        Bundle args = new Bundle();
+        args.putString(ARG_FAST_CONNECT_ADDRESS, fastConnectAddress);
+        fragment.setArguments(args);
+        return fragment;
+    }
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+        if (getArguments() != null) {
+            mFastConnectAddress = getArguments().getString(ARG_FAST_CONNECT_ADDRESS);
+        }
+        setupStreamTiming();
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -99,6 +244,38 @@ public class BluetoothConnectFragment extends Fragment {
         }
     }
 
+    /**
+     * Apply the live streaming timing of the preferences, the defaults where
+     * it isn't set or not valid. The launch extras update the preferences first.
+     */
+    private void setupStreamTiming() {
+        SharedPreferences prefs = requireContext().getSharedPreferences(STREAM_PREFS_NAME, Context.MODE_PRIVATE);
+        Bundle extras = requireActivity().getIntent().getExtras();
+        if (extras != null) {
+            SharedPreferences.Editor editor = prefs.edit();
+            if (extras.containsKey(KEY_STREAM_DEBOUNCE_MS)) {
+                editor.putLong(KEY_STREAM_DEBOUNCE_MS, extras.getLong(KEY_STREAM_DEBOUNCE_MS));
+            }
+            if (extras.containsKey(KEY_STREAM_MAX_LATENCY_MS)) {
+                editor.putLong(KEY_STREAM_MAX_LATENCY_MS, extras.getLong(KEY_STREAM_MAX_LATENCY_MS));
+            }
+            if (extras.containsKey(KEY_STREAM_MAX_FRAMES_PER_SECOND)) {
+                editor.putInt(KEY_STREAM_MAX_FRAMES_PER_SECOND, extras.getInt(KEY_STREAM_MAX_FRAMES_PER_SECOND));
+            }
+            editor.apply();
+        }
+        long debounceMs = prefs.getLong(KEY_STREAM_DEBOUNCE_MS, STREAM_DEBOUNCE_MS);
+        long maxLatencyMs = prefs.getLong(KEY_STREAM_MAX_LATENCY_MS, STREAM_MAX_LATENCY_MS);
+        int maxFramesPerSecond = prefs.getInt(KEY_STREAM_MAX_FRAMES_PER_SECOND, STREAM_MAX_FRAMES_PER_SECOND);
+        if (debounceMs < 0 || maxLatencyMs < debounceMs || maxFramesPerSecond <= 0) {
+            Log.w(TAG, "invalid streaming preferences, using the defaults");
+            debounceMs = STREAM_DEBOUNCE_MS;
+            maxLatencyMs = STREAM_MAX_LATENCY_MS;
+            maxFramesPerSecond = STREAM_MAX_FRAMES_PER_SECOND;
+        }
+        mTickerStreamer.setTiming(debounceMs, maxLatencyMs, maxFramesPerSecond);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -116,7 +293,7 @@ public class BluetoothConnectFragment extends Fragment {
             Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
             // Otherwise, setup the connection
-        } else if (mConnectService == null) {
+        } else if (!mBound) {
             setupConnectService();
         }
     }
@@ -124,14 +301,35 @@ public class BluetoothConnectFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        disconnectDevice();
+        mTickerStreamer.cancel();
+        stopTextSource();
+        stopSessionReplay();
+        mUiHandler.removeCallbacks(mDeviceStatusRefresh);
+        mUiHandler.removeCallbacks(mSendMetricsRefresh);
+
+        // The connections outlive a recreated UI, they only end with the app
+        FragmentActivity activity = getActivity();
+        if (activity != null && activity.isFinishing()) {
+            if (mConnectService != null) {
+                mConnectService.stopRecording();
+            }
+            disconnectDevice();
+        }
+        if (mBound) {
+            requireContext().getApplicationContext().unbindService(mServiceConnection);
+            mBound = false;
+        }
+        mConnectService = null;
     }
 
     public void disconnectDevice() {
         if (mConnectService != null) {
-            sendMessage("Waiting for message", true);
+            if (mConnectService.getState() == BluetoothConnectService.STATE_CONNECTED) {
+                mConnectService.writeControl(BluetoothConnectService.IDLE_MESSAGE.getBytes(StandardCharsets.UTF_8));
+            }
             mConnectService.stop();
-            oldValue = "";
+            mConnectService.logConnectStats();
+            mTickerEncoder.reset();
         }
     }
 
@@ -159,75 +357,217 @@ public class BluetoothConnectFragment extends Fragment {
 
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        LaunchTrace.mark("fragment view");
         mTextInput = view.findViewById(R.id.sendTextInput);
         mTextInput.setVisibility(View.GONE);
+        mTickerLayout.setText(mTextInput.getText());
+        mTextInput.addTextChangedListener(mTextWatcher);
 
         mSendButton = view.findViewById(R.id.sendBtn);
         mSendButton.setVisibility(View.GONE);
         mSendButton.setOnClickListener(view1 -> {
-            onTextSend(mTextInput.getText().toString());
+            onTextSend(false);
+        });
+
+        mStreamSwitch = view.findViewById(R.id.streamSwitch);
+        mStreamSwitch.setVisibility(View.GONE);
+        mStreamSwitch.setChecked(mTickerStreamer.isEnabled());
+        mStreamSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            mTickerStreamer.setEnabled(isChecked);
+            if (isChecked) {
+                onTextSend(true);
+            }
+        });
+
+        mSendMetrics = view.findViewById(R.id.sendMetrics);
+        mSendMetrics.setVisibility(View.GONE);
+
+        mExportMetricsButton = view.findViewById(R.id.exportMetricsBtn);
+        mExportMetricsButton.setVisibility(View.GONE);
+        mExportMetricsButton.setOnClickListener(view1 -> exportSendMetrics());
+
+        mMetricsSwitch = view.findViewById(R.id.metricsSwitch);
+        mMetricsSwitch.setVisibility(View.GONE);
+        mMetricsSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            mExportMetricsButton.setVisibility(isChecked ? View.VISIBLE : View.GONE);
+            updateSendMetrics();
         });
 
         mConnectButton = view.findViewById(R.id.connectBtn);
         mConnectButton.setOnClickListener(view1 -> {
+            LaunchTrace.mark("device list");
             mConnectButton.setEnabled(false);
             Intent serverIntent = new Intent(getActivity(), DeviceListActivity.class);
+            serverIntent.putExtra(DeviceListActivity.EXTRA_ALLOW_ANY, true);
             startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_INSECURE);
         });
 
+        mReplayButton = view.findViewById(R.id.replayBtn);
+        mReplayButton.setVisibility(View.GONE);
+        mReplayButton.setOnClickListener(view1 -> {
+            if (mTextSource != null) {
+                stopTextSource();
+                return;
+            }
+            // Pick a transcript to replay
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("text/*");
+            startActivityForResult(intent, REQUEST_REPLAY_TRANSCRIPT);
+        });
+
+        mRecordSwitch = view.findViewById(R.id.recordSwitch);
+        mRecordSwitch.setVisibility(View.GONE);
+        mRecordSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> setRecording(isChecked));
+
+        mReplaySessionButton = view.findViewById(R.id.replaySessionBtn);
+        mReplaySessionButton.setVisibility(View.GONE);
+        mReplaySessionButton.setOnClickListener(view1 -> toggleSessionReplay(SESSION_REPLAY_SPEED));
+        mReplaySessionButton.setOnLongClickListener(view1 -> {
+            // Full speed, as a load test
+            toggleSessionReplay(Double.POSITIVE_INFINITY);
+            return true;
+        });
+
+        mAddDeviceButton = view.findViewById(R.id.addDeviceBtn);
+        mAddDeviceButton.setVisibility(View.GONE);
+        mAddDeviceButton.setOnClickListener(view1 -> {
+            Intent serverIntent = new Intent(getActivity(), DeviceListActivity.class);
+            startActivityForResult(serverIntent, REQUEST_ADD_DEVICE);
+        });
+
+        mDeviceStatus = view.findViewById(R.id.deviceStatus);
+        mDeviceStatus.setVisibility(View.GONE);
+
         mDisconnectButton = view.findViewById(R.id.disconnectBtn);
         mDisconnectButton.setVisibility(View.GONE);
         mDisconnectButton.setOnClickListener(view1 -> {
             disconnectDevice();
         });
+
+        // The listener went away with the previous view, if any
+        if (mConnectService != null) {
+            mConnectService.addConnectionListener(getViewLifecycleOwner(), mConnectionListener);
+        }
+    }
+
+    /**
+     * Show the controls available while a device is connected.
+     */
+    private void showSendControls() {
+        mConnectButton.setVisibility(View.GONE);
+        mSendButton.setVisibility(View.VISIBLE);
+        mTextInput.setVisibility(View.VISIBLE);
+        mStreamSwitch.setVisibility(View.VISIBLE);
+        mMetricsSwitch.setVisibility(View.VISIBLE);
+        mExportMetricsButton.setVisibility(mMetricsSwitch.isChecked() ? View.VISIBLE : View.GONE);
+        mReplayButton.setVisibility(View.VISIBLE);
+        mRecordSwitch.setVisibility(View.VISIBLE);
+        mReplaySessionButton.setVisibility(View.VISIBLE);
+        mDisconnectButton.setVisibility(View.VISIBLE);
+        mAddDeviceButton.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * The connect at launch is over, the next failure is the user's to handle.
+     */
+    private void clearFastConnect() {
+        mFastConnectAddress = null;
+        if (getArguments() != null) {
+            getArguments().remove(ARG_FAST_CONNECT_ADDRESS);
+        }
     }
 
     /**
      * Set up the UI and background operations for connection.
      */
     private void setupConnectService() {
-        if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()
-                && (Build.VERSION.SDK_INT < Build.VERSION_CODES.S
-                    || (ContextCompat.checkSelfPermission(BluetoothConnectFragment.this.requireContext(), Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED
-                        && ContextCompat.checkSelfPermission(BluetoothConnectFragment.this.requireContext(), Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED))) {
-            mConnectButton.performClick();
-        }
-        // Initialize the array adapter for the conversation thread
         FragmentActivity activity = getActivity();
         if (activity == null) {
             return;
         }
 
-        // Initialize the BluetoothConnectService to perform bluetooth connections
-        mConnectService = new BluetoothConnectService(activity, mHandler);
+        // Bind to the service hosting the connections, it outlives this fragment
+        Context context = activity.getApplicationContext();
+        mBound = context.bindService(new Intent(context, ConnectionHostService.class),
+                mServiceConnection, Context.BIND_AUTO_CREATE);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer();
     }
 
-    private void sendMessage(String message) {
-        sendMessage(message, false);
-    }
+    /**
+     * Receives the BluetoothConnectService from the ConnectionHostService
+     */
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            if (getView() == null) {
+                return;
+            }
+            LaunchTrace.mark("service bound");
+            mConnectService = ((ConnectionHostService.LocalBinder) binder).getConnectService();
+            mConnectService.addConnectionListener(getViewLifecycleOwner(), mConnectionListener);
+            mRecordSwitch.setChecked(mConnectService.isRecording());
+
+            if (mConnectService.getConnectedDeviceCount() > 0) {
+                // Connected at launch, or the UI was recreated with the links up
+                Log.d(TAG, "bound to the running connections");
+                clearFastConnect();
+                for (DeviceStats device : mConnectService.getDeviceStats()) {
+                    if (device.name != null) {
+                        mConnectedDeviceName = device.name;
+                        break;
+                    }
+                }
+                showSendControls();
+                return;
+            }
+            if (mConnectService.getState() == BluetoothConnectService.STATE_CONNECTING) {
+                // Wait for the outcome of the connect in progress
+                mConnectButton.setEnabled(false);
+                return;
+            }
+
+            // The connect at launch, if any, failed before we were listening
+            clearFastConnect();
+            mConnectService.start();
+            if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()
+                    && (Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                        || (ContextCompat.checkSelfPermission(BluetoothConnectFragment.this.requireContext(), Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED
+                            && ContextCompat.checkSelfPermission(BluetoothConnectFragment.this.requireContext(), Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED))) {
+                mConnectButton.performClick();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Only with the process of the service, which is ours
+            mConnectService = null;
+        }
+    };
 
     /**
-     * Sends a message.
+     * Sends a frame.
      *
-     * @param message A string of text to send.
-     * @param silent Send text w/o toasts in any case.
+     * @param frame The encoded frame to send.
+     * @param silent Send the frame w/o toasts in any case.
      */
-    private void sendMessage(String message, boolean silent) {
-        // Check that we're actually connected before trying anything
-        if (mConnectService.getState() != BluetoothConnectService.STATE_CONNECTED) {
+    private void sendMessage(byte[] frame, boolean silent) {
+        // Check that we're actually connected before trying anything. While
+        // (re)connecting the service keeps the frame to send it once connected
+        int state = mConnectService.getState();
+        if (state != BluetoothConnectService.STATE_CONNECTED
+                && state != BluetoothConnectService.STATE_CONNECTING) {
             if (!silent) {
                 Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
             }
             return;
         }
 
-        Log.d(TAG, String.format("sending %s", message));
-        // Get the message bytes and tell the BluetoothConnectService to write
-        byte[] send = message.getBytes(StandardCharsets.UTF_8);
-        mConnectService.write(send);
+        Log.d(TAG, "sending " + frame.length + " bytes");
+        // Tell the BluetoothConnectService to write
+        mConnectService.write(frame);
 
         // Reset out string buffer to zero and clear the edit text field
         mOutStringBuffer.setLength(0);
@@ -268,74 +608,101 @@ public class BluetoothConnectFragment extends Fragment {
     }
 
     /**
-     * The Handler that gets information back from the BluetoothConnectService
+     * Gets the connection events back from the BluetoothConnectService
      */
-    private final Handler mHandler = new Handler() {
+    private final ConnectionListener mConnectionListener = new ConnectionListener() {
         @Override
-        public void handleMessage(Message msg) {
-            FragmentActivity activity = getActivity();
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1) {
-                        case BluetoothConnectService.STATE_CONNECTED:
-                            setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            break;
-                        case BluetoothConnectService.STATE_CONNECTING:
-                            setStatus(R.string.title_connecting);
-                            break;
-                        case BluetoothConnectService.STATE_LISTEN:
-                        case BluetoothConnectService.STATE_NONE:
-                            setStatus(R.string.title_not_connected);
-                            mConnectButton.setEnabled(true);
-                            mConnectButton.setVisibility(View.VISIBLE);
-                            mTextInput.setVisibility(View.GONE);
-                            mSendButton.setVisibility(View.GONE);
-                            mDisconnectButton.setVisibility(View.GONE);
-                            break;
-                    }
-                    break;
-                case Constants.MESSAGE_WRITE:
-                    // can be used to show sent message on UI
-                    // byte[] writeBuf = (byte[]) msg.obj;
-                    // // construct a string from the buffer
-                    // String writeMessage = new String(writeBuf);
-                    break;
-                case Constants.MESSAGE_READ:
-                    // can be used to retrieve message from the connected device
-                    // byte[] readBuf = (byte[]) msg.obj;
-                    // // construct a string from the valid bytes in the buffer
-                    // String readMessage = new String(readBuf, 0, msg.arg1);
-                    break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    // save the connected device's name
-                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
-                    if (null != activity) {
-                        Toast.makeText(activity, "Connected to "
-                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                    }
-                    break;
-                case Constants.MESSAGE_TOAST:
-                    if (null != activity) {
-                        Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
-                                Toast.LENGTH_SHORT).show();
+        public void onStateChanged(int state, int connectedDevices) {
+            switch (state) {
+                case BluetoothConnectService.STATE_CONNECTED:
+                    if (connectedDevices > 1) {
+                        setStatus(getString(R.string.title_connected_to_devices, connectedDevices));
+                    } else {
+                        setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
                     }
+                    updateDeviceStatus();
                     break;
-                case Constants.CONNECTED:
-                    mConnectButton.setVisibility(View.GONE);
-                    mSendButton.setVisibility(View.VISIBLE);
-                    mTextInput.setVisibility(View.VISIBLE);
-                    mDisconnectButton.setVisibility(View.VISIBLE);
+                case BluetoothConnectService.STATE_CONNECTING:
+                    setStatus(R.string.title_connecting);
                     break;
-                case Constants.DISCONNECTED:
-                    mSendButton.setVisibility(View.GONE);
+                case BluetoothConnectService.STATE_LISTEN:
+                case BluetoothConnectService.STATE_NONE:
+                    setStatus(R.string.title_not_connected);
+                    mConnectButton.setEnabled(true);
+                    mConnectButton.setVisibility(View.VISIBLE);
                     mTextInput.setVisibility(View.GONE);
+                    mStreamSwitch.setVisibility(View.GONE);
+                    mMetricsSwitch.setVisibility(View.GONE);
+                    mExportMetricsButton.setVisibility(View.GONE);
+                    mReplayButton.setVisibility(View.GONE);
+                    mRecordSwitch.setVisibility(View.GONE);
+                    mReplaySessionButton.setVisibility(View.GONE);
+                    mSendButton.setVisibility(View.GONE);
                     mDisconnectButton.setVisibility(View.GONE);
-                    mConnectButton.setVisibility(View.VISIBLE);
-                    mConnectButton.setEnabled(true);
-                    oldValue = "";
+                    mAddDeviceButton.setVisibility(View.GONE);
+                    mTickerStreamer.cancel();
+                    stopTextSource();
+                    stopSessionReplay();
+                    updateDeviceStatus();
+                    updateSendMetrics();
                     break;
             }
         }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+            // save the connected device's name
+            if (name != null) {
+                mConnectedDeviceName = name;
+                showToast("Connected to " + name);
+            }
+            LaunchTrace.end(mFastConnectAddress != null ? "connected, fast path" : "connected");
+            clearFastConnect();
+            showSendControls();
+        }
+
+        @Override
+        public void onConnectionFailed(String address, boolean reconnecting) {
+            showToast(reconnecting ? "Unable to reconnect to device" : "Unable to connect to device");
+            mConnectButton.setEnabled(true);
+            if (address.equals(mFastConnectAddress)) {
+                // Let the user pick the device instead
+                clearFastConnect();
+                mConnectButton.performClick();
+            }
+        }
+
+        @Override
+        public void onConnectionLost(String address, boolean reconnecting) {
+            showToast(reconnecting ? "Device connection was lost, reconnecting" : "Device connection was lost");
+        }
+
+        @Override
+        public void onDisconnected() {
+            mSendButton.setVisibility(View.GONE);
+            mTextInput.setVisibility(View.GONE);
+            mStreamSwitch.setVisibility(View.GONE);
+            mMetricsSwitch.setVisibility(View.GONE);
+            mExportMetricsButton.setVisibility(View.GONE);
+            mReplayButton.setVisibility(View.GONE);
+            mRecordSwitch.setVisibility(View.GONE);
+            mReplaySessionButton.setVisibility(View.GONE);
+            mDisconnectButton.setVisibility(View.GONE);
+            mAddDeviceButton.setVisibility(View.GONE);
+            mConnectButton.setVisibility(View.VISIBLE);
+            mConnectButton.setEnabled(true);
+            mTickerStreamer.cancel();
+            stopTextSource();
+            stopSessionReplay();
+            mTickerEncoder.reset();
+        }
+
+        private void showToast(String text) {
+            FragmentActivity activity = getActivity();
+            if (null != activity) {
+                Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
+            }
+        }
     };
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -343,7 +710,19 @@ public class BluetoothConnectFragment extends Fragment {
             case REQUEST_CONNECT_DEVICE_INSECURE:
                 // When DeviceListActivity returns with a device to connect
                 if (resultCode == Activity.RESULT_OK && data != null) {
-                    connectDevice(data);
+                    connectDevice(data, false);
+                }
+                break;
+            case REQUEST_ADD_DEVICE:
+                // When DeviceListActivity returns with a device to add to the fan-out
+                if (resultCode == Activity.RESULT_OK && data != null) {
+                    connectDevice(data, true);
+                }
+                break;
+            case REQUEST_REPLAY_TRANSCRIPT:
+                // When the document picker returns with a transcript to replay
+                if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                    replayTranscript(data.getData());
                 }
                 break;
             case REQUEST_ENABLE_BT:
@@ -368,78 +747,392 @@ public class BluetoothConnectFragment extends Fragment {
     /**
      * Establish connection with other device
      *
-     * @param data   An {@link Intent} with {@link DeviceListActivity#EXTRA_DEVICE_ADDRESS} extra.
+     * @param data   An {@link Intent} with {@link DeviceListActivity#EXTRA_DEVICE_ADDRESS} extra,
+     *               or {@link DeviceListActivity#EXTRA_DEVICE_ADDRESSES} to connect to the first
+     *               device which answers.
+     * @param fanOut Keep the connections to the other devices
      */
-    private void connectDevice(Intent data) {
+    private void connectDevice(Intent data, boolean fanOut) {
         // Get the device MAC address
         Bundle extras = data.getExtras();
         if (extras == null) {
             return;
         }
+        String[] addresses = extras.getStringArray(DeviceListActivity.EXTRA_DEVICE_ADDRESSES);
+        if (addresses != null) {
+            List<BluetoothDevice> devices = new ArrayList<>();
+            for (String candidate : addresses) {
+                devices.add(mBluetoothAdapter.getRemoteDevice(candidate));
+            }
+            mConnectService.connectFirst(devices, CONNECT_RACE_TIMEOUT_MS);
+            return;
+        }
         String address = extras.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
         // Get the BluetoothDevice object
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         // Attempt to connect to the device
-        mConnectService.connect(device);
+        if (fanOut) {
+            mConnectService.addDevice(device);
+        } else {
+            mConnectService.connect(device);
+        }
     }
 
-    /****************************************** UI Widget Callbacks *******************************/
-
-    private void onTextSend(String text) {
-        String value = text.replaceAll("\\s+", " ").trim();
-        if (value.equals(oldValue)) {
+    /**
+     * Replay a timestamped transcript as if it came from a recognizer
+     *
+     * @param uri The transcript, see {@link ReplayTextSource} for the format
+     */
+    private void replayTranscript(Uri uri) {
+        FragmentActivity activity = getActivity();
+        if (activity == null) {
             return;
         }
-        oldValue = value;
-        if (value.length() == 0) {
-            sendMessage("");
+        InputStream in;
+        try {
+            in = activity.getContentResolver().openInputStream(uri);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Unable to open the transcript " + uri, e);
+            in = null;
+        }
+        if (in == null) {
+            Toast.makeText(activity, R.string.replay_failed, Toast.LENGTH_SHORT).show();
             return;
         }
-
-        sendMessage(formatText(value));
+        startTextSource(new ReplayTextSource(
+                new InputStreamReader(in, StandardCharsets.UTF_8), REPLAY_SPEED));
     }
 
-    private static String formatText(String inputText) {
-        String[] words = inputText.trim().split("\\s+");
-        int lineLength = 20;
-        int numberOfLines = 6;
+    /**
+     * Let a text source drive the ticker. The text input is disabled meanwhile
+     * and the frames are streamed.
+     *
+     * @param source The source of recognized text
+     */
+    private void startTextSource(final TextSource source) {
+        stopTextSource();
+        mTextSource = source;
+        mTextInput.setEnabled(false);
+        mTickerLayout.clear();
+        mTranscriptAssembler.reset(mTickerLayout);
+        mStreamSwitch.setChecked(true);
+        mReplayButton.setText(R.string.button_stop_replay);
 
-        String[] formattedReversedLines = new String[numberOfLines];
+        // Scroll the recognized text line by line, off the UI thread
+        final BluetoothConnectService service = mConnectService;
+        mFrameScheduler = new FrameScheduler(SCHEDULER_FRAME_INTERVAL_MS,
+                SCHEDULER_MIN_DWELL_MS, SCHEDULER_LATENCY_BUDGET_MS);
+        mFrameScheduler.start(new FrameScheduler.Listener() {
+            // The encoder of the UI thread isn't thread-safe
+            private final TickerEncoder mmEncoder = new TickerEncoder(DEVICE_CHARSET);
 
-        int wordIndex = words.length - 1; // Start from the end of the words array
+            @Override
+            public void onFrame(TickerLayout layout) {
+                SendMetrics metrics = service.getSendMetrics();
+                metrics.onFrameRequested();
+                byte[] frame = mmEncoder.encodeIfChanged(layout);
+                if (frame == null) {
+                    metrics.onFrameUnchanged();
+                    return;
+                }
+                int state = service.getState();
+                if (state == BluetoothConnectService.STATE_CONNECTED
+                        || state == BluetoothConnectService.STATE_CONNECTING) {
+                    service.write(frame);
+                }
+            }
+        });
 
-        int i = 0;
-        while (i < numberOfLines && wordIndex >= 0) {
-            StringBuilder lineBuilder = new StringBuilder();
+        source.start(new TextSource.Listener() {
+            @Override
+            public void onPartialResult(CharSequence text) {
+                if (mTranscriptAssembler.offerPartial(DEVICE_CHARSET.map(text))) {
+                    mUiHandler.post(mApplyTranscript);
+                }
+            }
 
-            // Build a line with up to 20 characters
-            while (wordIndex >= 0 && lineBuilder.length() + words[wordIndex].length() <= lineLength) {
-                String word = words[wordIndex];
-                if (word != null && word.length() > 0) {
-                    lineBuilder.insert(0, words[wordIndex] + " ");
+            @Override
+            public void onFinalResult(CharSequence text) {
+                if (mTranscriptAssembler.offerFinal(DEVICE_CHARSET.map(text))) {
+                    mUiHandler.post(mApplyTranscript);
                 }
-                wordIndex--;
             }
 
-            // Trim any extra whitespace at the end
-            String lineText = lineBuilder.toString().trim();
-            if (lineText.length() > 0) {
-                formattedReversedLines[i] = lineText;
-                i++;
+            @Override
+            public void onEnd() {
+                mUiHandler.post(() -> {
+                    if (mTextSource == source) {
+                        // Show the last results before the source goes away
+                        mApplyTranscript.run();
+                        stopTextSource();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                Log.e(TAG, "Text source failed", e);
+                mUiHandler.post(() -> {
+                    if (mTextSource == source) {
+                        stopTextSource();
+                        FragmentActivity activity = getActivity();
+                        if (activity != null) {
+                            Toast.makeText(activity, R.string.replay_failed, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop the text source, if any, and give the ticker back to the text input.
+     * The device keeps the last frame of the source until the next send.
+     */
+    private void stopTextSource() {
+        if (mTextSource == null) {
+            return;
+        }
+        mTextSource.stop();
+        mTextSource = null;
+        mUiHandler.removeCallbacks(mApplyTranscript);
+        mFrameScheduler.stop();
+        Log.i(TAG, "frame scheduler: " + mFrameScheduler.getTickCount() + " ticks, jitter mean "
+                + TimeUnit.NANOSECONDS.toMillis(mFrameScheduler.getMeanJitterNanos()) + " ms, max "
+                + TimeUnit.NANOSECONDS.toMillis(mFrameScheduler.getMaxJitterNanos()) + " ms, caption latency max "
+                + TimeUnit.NANOSECONDS.toMillis(mFrameScheduler.getMaxLatencyNanos()) + " ms, "
+                + mFrameScheduler.getCatchUpCount() + " catch-ups");
+        mFrameScheduler = null;
+
+        // Send the whole text now, the layout is about to change
+        mTickerStreamer.cancel();
+        if (mConnectService != null) {
+            onTextSend(true);
+        }
+        mTickerLayout.setText(mTextInput.getText());
+        mTextInput.setEnabled(true);
+        mReplayButton.setText(R.string.button_replay_transcript);
+    }
+
+    /**
+     * Start or stop recording the frames sent to the devices
+     *
+     * @param recording Record the frames to a new session log
+     */
+    private void setRecording(boolean recording) {
+        FragmentActivity activity = getActivity();
+        if (mConnectService == null || activity == null
+                || recording == mConnectService.isRecording()) {
+            return;
+        }
+        if (!recording) {
+            mConnectService.stopRecording();
+            return;
+        }
+        File directory = new File(activity.getFilesDir(), SESSION_DIRECTORY);
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            mConnectService.startRecording(new File(directory, name + SESSION_SUFFIX));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record the session", e);
+            Toast.makeText(activity, R.string.recording_failed, Toast.LENGTH_SHORT).show();
+            mRecordSwitch.setChecked(false);
+        }
+    }
+
+    /**
+     * Replay the last recorded session through the service, or stop the replay
+     *
+     * @param speed Playback speed, 1 for the original timing, infinite for no pauses
+     */
+    private void toggleSessionReplay(double speed) {
+        if (mSessionPlayer != null) {
+            stopSessionReplay();
+            return;
+        }
+        FragmentActivity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        // Don't record the replay over the last session
+        mRecordSwitch.setChecked(false);
+
+        File[] sessions = new File(activity.getFilesDir(), SESSION_DIRECTORY).listFiles(
+                (dir, name) -> name.endsWith(SESSION_SUFFIX));
+        if (sessions == null || sessions.length == 0) {
+            Toast.makeText(activity, R.string.no_session, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // The names sort by the time of the recording
+        File session = sessions[0];
+        for (File file : sessions) {
+            if (file.getName().compareTo(session.getName()) > 0) {
+                session = file;
+            }
+        }
+
+        stopTextSource();
+        mTickerStreamer.cancel();
+        final SessionPlayer player = new SessionPlayer(session, speed);
+        mSessionPlayer = player;
+        mReplaySessionButton.setText(R.string.button_stop_session_replay);
+        Log.i(TAG, "replaying " + session + " at speed " + speed);
+
+        player.start(new SessionPlayer.Listener() {
+            @Override
+            public void onFrame(int type, byte[] frame) {
+                mConnectService.writeRecorded(type, frame);
+            }
+
+            @Override
+            public void onEnd() {
+                mUiHandler.post(() -> {
+                    if (mSessionPlayer == player) {
+                        stopSessionReplay();
+                    }
+                });
             }
+
+            @Override
+            public void onFailed(IOException e) {
+                Log.e(TAG, "Session replay failed", e);
+                mUiHandler.post(() -> {
+                    if (mSessionPlayer == player) {
+                        stopSessionReplay();
+                        FragmentActivity activity = getActivity();
+                        if (activity != null) {
+                            Toast.makeText(activity, R.string.session_replay_failed,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop the session replay, if any
+     */
+    private void stopSessionReplay() {
+        if (mSessionPlayer == null) {
+            return;
         }
+        mSessionPlayer.stop();
+        mSessionPlayer = null;
+        // The device shows a replayed frame, the next frame must be sent whatever it is
+        mTickerEncoder.reset();
+        mReplaySessionButton.setText(R.string.button_replay_session);
+    }
 
-        List<String> lines = Arrays.asList(formattedReversedLines).stream().filter(s -> s != null && s.length() != 0).collect(Collectors.toList());
-        Collections.reverse(lines);
+    /**
+     * Refreshes the per-device status while more than one device is in use
+     */
+    private final Runnable mDeviceStatusRefresh = this::updateDeviceStatus;
+
+    /**
+     * Shows the state and throughput of every device in the fan-out mode
+     */
+    private void updateDeviceStatus() {
+        mUiHandler.removeCallbacks(mDeviceStatusRefresh);
+        List<DeviceStats> devices = mConnectService.getDeviceStats();
+        if (devices.size() < 2) {
+            mDeviceStatus.setVisibility(View.GONE);
+            return;
+        }
 
         StringBuilder sb = new StringBuilder();
-        for (int j = 0; j < lines.size(); j++) {
-            String line = lines.get(j);
-            sb.append(line);
-            if(j < lines.size() - 1 && line.length() < lineLength) {
-                sb.append("\n");
+        for (DeviceStats device : devices) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(device.name != null ? device.name : device.address).append(": ");
+            switch (device.state) {
+                case BluetoothConnectService.STATE_CONNECTED:
+                    sb.append(String.format(Locale.US, "%d frames, %d dropped, %.1f fps",
+                            device.sentFrames, device.droppedFrames, device.targetFrameRate));
+                    break;
+                case BluetoothConnectService.STATE_CONNECTING:
+                    sb.append(getString(R.string.title_connecting));
+                    break;
+                default:
+                    sb.append(getString(R.string.title_not_connected));
+                    break;
             }
         }
-        return sb.toString().trim();
+        mDeviceStatus.setText(sb);
+        mDeviceStatus.setVisibility(View.VISIBLE);
+        mUiHandler.postDelayed(mDeviceStatusRefresh, DEVICE_STATUS_REFRESH_MS);
+    }
+
+    /**
+     * Refreshes the send metrics overlay while it's shown
+     */
+    private final Runnable mSendMetricsRefresh = this::updateSendMetrics;
+
+    /**
+     * Shows the send path metrics over the controls if enabled
+     */
+    private void updateSendMetrics() {
+        mUiHandler.removeCallbacks(mSendMetricsRefresh);
+        if (!mMetricsSwitch.isChecked() || mMetricsSwitch.getVisibility() != View.VISIBLE) {
+            mSendMetrics.setVisibility(View.GONE);
+            return;
+        }
+        mSendMetrics.setText(mConnectService.getSendMetricsSnapshot().toString());
+        mSendMetrics.setVisibility(View.VISIBLE);
+        mUiHandler.postDelayed(mSendMetricsRefresh, SEND_METRICS_REFRESH_MS);
+    }
+
+    /**
+     * Shares a snapshot of the send path metrics, e.g. to mail it
+     */
+    private void exportSendMetrics() {
+        String snapshot = mConnectService.getSendMetricsSnapshot().toString();
+        Log.i(TAG, "send metrics\n" + snapshot);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.send_metrics_subject));
+        intent.putExtra(Intent.EXTRA_TEXT, snapshot);
+        startActivity(Intent.createChooser(intent, getString(R.string.button_export_metrics)));
+    }
+
+    /****************************************** UI Widget Callbacks *******************************/
+
+    /**
+     * Passes every edit of the text input to the ticker layout
+     */
+    private final TextWatcher mTextWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            mTickerLayout.replace(start, start + before, s, start, start + count);
+            mTickerStreamer.onEdit();
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+        }
+    };
+
+    /**
+     * Sends the current frame unless it's the same as the last one sent
+     *
+     * @param silent Send the frame w/o toasts in any case.
+     */
+    private void onTextSend(boolean silent) {
+        SendMetrics metrics = mConnectService.getSendMetrics();
+        metrics.onFrameRequested();
+        byte[] frame = mTickerEncoder.encodeIfChanged(mTickerLayout);
+        if (frame == null) {
+            metrics.onFrameUnchanged();
+            return;
+        }
+        sendMessage(frame, silent);
     }
 }
@@ -16,416 +16,350 @@
 
 package com.trivisio.junior.connect;
 
-import android.Manifest;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.os.Build;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
-import androidx.core.app.ActivityCompat;
+import androidx.lifecycle.LifecycleOwner;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Arrays;
-import java.util.UUID;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices: a {@link ConnectionManager} over the RFCOMM
+ * sockets of the {@link BluetoothTransportFactory}, its events delivered to the
+ * UI on the main thread, and the frames optionally recorded to a session log.
+ * <p>
+ * Normally the service drives a single device. In the fan-out mode more
+ * devices are added with {@link #addDevice(BluetoothDevice)}; every device
+ * has its own connection threads, state and outbound mailbox, so a slow or
+ * dead device doesn't stall the others.
  */
 public class BluetoothConnectService {
     // Debugging
     private static final String TAG = "BluetoothConnectService";
 
-    // SPP UUID for communications
-    private static final UUID SPP_UUID =
-            UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+    /**
+     * Text shown by the Junior when no device is sending to it
+     */
+    public static final String IDLE_MESSAGE = ConnectionManager.IDLE_MESSAGE;
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private final Context mContext;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-    private int mNewState;
+    private final ConnectionManager mManager;
+    private final LastDeviceStore mLastDevice;
+
+    /**
+     * Delivers the connection events to the UI
+     */
+    private final ConnectionEventDispatcher mEvents;
+
+    /**
+     * Log of the frames passed to write() and writeControl(), null when not recording
+     */
+    private volatile SessionRecorder mRecorder;
+
+    /**
+     * Appends the frames to the session log, in order, off the threads calling
+     * write(); growing the log maps a new window of the file
+     */
+    private final ExecutorService mRecordExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SessionRecorder");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = ConnectionState.STATE_NONE;             // we're doing nothing
+    public static final int STATE_LISTEN = ConnectionState.STATE_LISTEN;         // now listening for incoming connections
+    public static final int STATE_CONNECTING = ConnectionState.STATE_CONNECTING; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = ConnectionState.STATE_CONNECTED;   // now connected to a remote device
 
     /**
      * Constructor. Prepares a new BluetoothConnect session.
      *
      * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
      */
-    public BluetoothConnectService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mNewState = mState;
-        mHandler = handler;
-        mContext = context;
+    public BluetoothConnectService(Context context) {
+        mLastDevice = new LastDeviceStore(context);
+        mEvents = new ConnectionEventDispatcher(this);
+        mManager = new ConnectionManager(new BluetoothTransportFactory(context), mManagerListener,
+                new LogcatConnectionLog(TAG));
     }
 
     /**
-     * Update UI title according to the current state of the BT connection
+     * Hands the events of the manager over to the main thread
      */
-    private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+    private final ConnectionManager.Listener mManagerListener = new ConnectionManager.Listener() {
+        @Override
+        public void onStateChanged(String address, int state) {
+            updateUserInterfaceTitle();
+        }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
-    }
+        @Override
+        public void onDeviceConnected(String address, String name) {
+            mEvents.postDeviceConnected(address, name);
+            // Connect to it at the next launch
+            mLastDevice.put(address);
+        }
+
+        @Override
+        public void onConnectionFailed(String address, boolean reconnecting) {
+            mEvents.postConnectionFailed(address, reconnecting);
+        }
+
+        @Override
+        public void onConnectionLost(String address, boolean reconnecting) {
+            mEvents.postConnectionLost(address, reconnecting);
+        }
+
+        @Override
+        public void onDisconnected() {
+            mEvents.postDisconnected();
+        }
+    };
 
     /**
-     * Return the current connection state.
+     * Register a listener for the connection events, delivered on the main
+     * thread. It is removed when the owner is destroyed. Call on the main thread.
+     *
+     * @param owner    The lifecycle the registration is bound to
+     * @param listener The receiver of the events
      */
-    public synchronized int getState() {
-        return mState;
+    public void addConnectionListener(LifecycleOwner owner, ConnectionListener listener) {
+        mEvents.addListener(owner, listener);
     }
 
     /**
-     * Start the connection service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Unregister a listener for the connection events. Call on the main thread.
      */
-    public synchronized void start() {
-        Log.d(TAG, "start");
+    public void removeConnectionListener(ConnectionListener listener) {
+        mEvents.removeListener(listener);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    /**
+     * Update UI title according to the current state of the BT connections.
+     * Called for every state transition; the transitions the UI hasn't seen
+     * yet are coalesced into the latest state.
+     */
+    private void updateUserInterfaceTitle() {
+        mEvents.postStateChanged();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Return the connection manager, for the settings and statistics which
+     * have no shortcut here.
+     */
+    public ConnectionManager getConnectionManager() {
+        return mManager;
+    }
 
-        // Update UI title
-        updateUserInterfaceTitle();
+    /**
+     * Return the current connection state: connected if any device is connected,
+     * connecting if any device is being connected. Never blocks.
+     */
+    public int getState() {
+        return mManager.getState();
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
-     *
-     * @param device The BluetoothDevice to connect
+     * Return the number of connected devices.
      */
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect to: " + device);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
+    public int getConnectedDeviceCount() {
+        return mManager.getConnectedDeviceCount();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Start the connection service. Cancels all the connection threads.
+     * Called by the Activity onResume()
+     */
+    public void start() {
+        mManager.start();
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start connecting to a remote device. Any other device connection is dropped.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param device The BluetoothDevice to connect
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+    public void connect(BluetoothDevice device) {
+        mManager.connect(device.getAddress());
+    }
 
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
-                && ActivityCompat.checkSelfPermission(mContext, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return;
+    /**
+     * Connect to whichever of the devices answers first.
+     *
+     * @param devices   The candidate devices
+     * @param timeoutMs Time the race may take
+     * @see ConnectionManager#connectFirst(List, long)
+     */
+    public void connectFirst(List<BluetoothDevice> devices, long timeoutMs) {
+        List<String> addresses = new ArrayList<>(devices.size());
+        for (BluetoothDevice device : devices) {
+            addresses.add(device.getAddress());
         }
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-        // Update UI title
-        updateUserInterfaceTitle();
+        mManager.connectFirst(addresses, timeoutMs);
     }
 
     /**
-     * Stop all threads
+     * Add a device to the fan-out: connect to it while keeping the connections to
+     * the other devices. Every ticker frame is sent to all the connected devices.
+     *
+     * @param device The BluetoothDevice to connect
      */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
-        mState = STATE_NONE;
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public void addDevice(BluetoothDevice device) {
+        mManager.addDevice(device.getAddress());
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Disconnect a device from the fan-out.
+     *
+     * @param address The MAC address of the device
+     */
+    public void removeDevice(String address) {
+        mManager.removeDevice(address);
+    }
 
-        // Update UI title
-        updateUserInterfaceTitle();
+    /**
+     * Stop all threads, without waiting for them.
+     *
+     * @see ConnectionManager#stop()
+     */
+    public void stop() {
+        mManager.stop();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a ticker frame for all the connected devices.
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see ConnectionManager#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) {
-                return;
-            }
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
+        record(SessionRecorder.TYPE_TICKER, out);
+        mManager.write(out);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Queue a control frame for all the connected devices.
+     *
+     * @param out The bytes to write
+     * @see ConnectionManager#writeControl(byte[])
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect to device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        mState = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
-
-        // Start the service over to restart listening mode
-        BluetoothConnectService.this.start();
+    public void writeControl(byte[] out) {
+        record(SessionRecorder.TYPE_CONTROL, out);
+        mManager.writeControl(out);
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Queue a frame of a recorded session, as it was queued when recorded.
+     *
+     * @param type  A SessionRecorder TYPE_ constant
+     * @param frame The bytes to write
      */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        Message msg2 = mHandler.obtainMessage(Constants.DISCONNECTED);
-        mHandler.sendMessage(msg2);
-
-        mState = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
+    public void writeRecorded(int type, byte[] frame) {
+        if (type == SessionRecorder.TYPE_CONTROL) {
+            writeControl(frame);
+        } else {
+            write(frame);
+        }
+    }
 
-        // Start the service over to restart listening mode
-        BluetoothConnectService.this.start();
+    /**
+     * Start recording the frames to a session log, replacing the current
+     * recording if any. The frames are appended through a memory-mapped file
+     * on a background thread, so the callers of write() don't wait for the disk.
+     *
+     * @param file The log file
+     * @throws IOException if the log can't be created
+     * @see SessionPlayer
+     */
+    public synchronized void startRecording(File file) throws IOException {
+        stopRecording();
+        mRecorder = new SessionRecorder(file);
+        Log.i(TAG, "recording the session to " + file);
     }
 
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * Stop recording the frames, if recording.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private final String mSocketType;
-
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
-                        && ActivityCompat.checkSelfPermission(mContext, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    throw new IOException("No BT permissions");
-                }
-                Log.d("Device UUIDs:", Arrays.toString(device.getUuids()));
-                tmp = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mmSocket = tmp;
-            mState = STATE_CONNECTING;
+    public synchronized void stopRecording() {
+        final SessionRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return;
         }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
-                    && ActivityCompat.checkSelfPermission(mContext, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-                return;
-            }
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
+        mRecorder = null;
+        // After the frames queued so far
+        mRecordExecutor.execute(() -> {
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
+                recorder.close();
+                Log.i(TAG, "recorded " + recorder.getRecordCount() + " frames to " + recorder.getFile());
             } catch (IOException e) {
-                Log.e(TAG, "connection failure", e); // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
-                }
-                connectionFailed();
-                return;
+                Log.e(TAG, "close() of the session log failed", e);
             }
+        });
+    }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothConnectService.this) {
-                mConnectThread = null;
-            }
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+    private void record(final int type, final byte[] frame) {
+        final SessionRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return;
         }
-
-        public void cancel() {
+        final long now = System.nanoTime();
+        mRecordExecutor.execute(() -> {
             try {
-                mmSocket.close();
+                recorder.append(type, frame, now);
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "Session recording failed, stopping it", e);
+                synchronized (BluetoothConnectService.this) {
+                    if (mRecorder == recorder) {
+                        stopRecording();
+                    }
+                }
             }
-        }
+        });
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Return the send path metrics, e.g. to count the frames requested by the UI.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
-            Message msg = mHandler.obtainMessage(Constants.CONNECTED);
-            mHandler.sendMessage(msg);
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    if (mState == STATE_CONNECTED) {
-                        Log.e(TAG, "disconnected", e);
-                        connectionLost();
-                    }
-                    break;
-                }
-            }
-        }
+    public SendMetrics getSendMetrics() {
+        return mManager.getSendMetrics();
+    }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+    /**
+     * Return a copy of the send path metrics including the mailbox counters.
+     */
+    public SendMetrics.Snapshot getSendMetricsSnapshot() {
+        return mManager.getSendMetricsSnapshot();
+    }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-        }
+    /**
+     * Return the state and throughput of every device.
+     */
+    public List<DeviceStats> getDeviceStats() {
+        return mManager.getDeviceStats();
+    }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
+    /**
+     * Write the connect phase statistics of all the devices to logcat.
+     */
+    public void logConnectStats() {
+        StringWriter out = new StringWriter();
+        mManager.dumpConnectStats(new PrintWriter(out));
+        Log.i(TAG, "connect phase statistics\n" + out);
     }
 }
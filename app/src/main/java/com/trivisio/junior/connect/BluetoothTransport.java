@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+
+/**
+ * {@link Transport} over an RFCOMM BluetoothSocket.
+ */
+public class BluetoothTransport implements Transport {
+
+    private static final String TAG = "BluetoothTransport";
+
+    // Set once the channel couldn't be read, it fails the same way every time
+    private static volatile boolean sChannelUnavailable;
+
+    private final BluetoothSocket mSocket;
+
+    /**
+     * @param socket The unconnected socket
+     */
+    public BluetoothTransport(BluetoothSocket socket) {
+        mSocket = socket;
+    }
+
+    // The Bluetooth permissions are checked before the socket is created
+    @SuppressLint("MissingPermission")
+    @Override
+    public void connect() throws IOException {
+        mSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    /**
+     * Return the RFCOMM channel of the connected socket, read from the hidden
+     * BluetoothSocket.mPort field. The field is on the hidden API blocklist for
+     * apps targeting API 28 or later, so on current devices the channel can't
+     * be read, the {@link RfcommChannelCache} stays empty and every connect
+     * does the SDP lookup. That is logged once.
+     *
+     * @return The channel, -1 if it can't be read
+     */
+    public int getChannel() {
+        if (sChannelUnavailable) {
+            return -1;
+        }
+        try {
+            Field field = BluetoothSocket.class.getDeclaredField("mPort");
+            field.setAccessible(true);
+            return field.getInt(mSocket);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            sChannelUnavailable = true;
+            Log.w(TAG, "RFCOMM channel of the socket is not available, connects won't skip the SDP lookup", e);
+            return -1;
+        }
+    }
+}
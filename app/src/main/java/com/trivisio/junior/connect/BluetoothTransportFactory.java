@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Makes the insecure RFCOMM sockets to the SPP service of the Juniors. A device
+ * with a cached RFCOMM channel is reached on it, skipping the SDP lookup; the
+ * channel can only be cached where the platform lets it be read, see
+ * {@link BluetoothTransport#getChannel()}.
+ */
+public class BluetoothTransportFactory implements TransportFactory {
+    // Debugging
+    private static final String TAG = "BluetoothTransportFactory";
+
+    // SPP UUID for communications
+    private static final UUID SPP_UUID =
+            UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothAdapter mAdapter;
+    private final Context mContext;
+    private final RfcommChannelCache mChannelCache;
+
+    public BluetoothTransportFactory(Context context) {
+        mAdapter = BluetoothAdapter.getDefaultAdapter();
+        mContext = context;
+        mChannelCache = new RfcommChannelCache(context);
+    }
+
+    @Override
+    public Transport createCachedTransport(String address) {
+        int channel = mChannelCache.get(address);
+        if (channel <= 0) {
+            return null;
+        }
+        BluetoothSocket socket = createChannelSocket(mAdapter.getRemoteDevice(address), channel);
+        return socket != null ? new BluetoothTransport(socket) : null;
+    }
+
+    @Override
+    public Transport createTransport(String address) {
+        try {
+            if (!hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                throw new IOException("No BT permissions");
+            }
+            BluetoothDevice device = mAdapter.getRemoteDevice(address);
+            return new BluetoothTransport(device.createInsecureRfcommSocketToServiceRecord(SPP_UUID));
+        } catch (IOException e) {
+            Log.e(TAG, "Socket Type: Insecure create() failed", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void onTransportConnected(String address, Transport transport) {
+        int channel = ((BluetoothTransport) transport).getChannel();
+        if (channel > 0) {
+            mChannelCache.put(address, channel);
+        }
+    }
+
+    @Override
+    public void onCachedTransportFailed(String address) {
+        mChannelCache.remove(address);
+    }
+
+    @Override
+    public boolean prepareConnect() {
+        // Always cancel discovery because it will slow down a connection
+        if (!hasPermission(Manifest.permission.BLUETOOTH_SCAN)) {
+            return false;
+        }
+        mAdapter.cancelDiscovery();
+        return true;
+    }
+
+    @Override
+    public String getDeviceName(String address) {
+        if (!hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+            return null;
+        }
+        return mAdapter.getRemoteDevice(address).getName();
+    }
+
+    /**
+     * Return whether the Bluetooth permission is granted, it is implied before
+     * Android 12
+     */
+    private boolean hasPermission(String permission) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || ActivityCompat.checkSelfPermission(mContext, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Create a socket to the given RFCOMM channel, skipping the SDP lookup. Uses
+     * the hidden BluetoothDevice.createInsecureRfcommSocket(int).
+     *
+     * @return The socket, null if the platform doesn't allow it
+     */
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel) {
+        try {
+            Method method = device.getClass().getMethod("createInsecureRfcommSocket", int.class);
+            return (BluetoothSocket) method.invoke(device, channel);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.w(TAG, "direct RFCOMM channel connect is not available", e);
+            return null;
+        }
+    }
+}
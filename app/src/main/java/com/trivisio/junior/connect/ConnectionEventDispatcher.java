@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers the connection events of the service to the listeners on the main
+ * thread.
+ * <p>
+ * State changes are coalesced: however many transitions happen before the main
+ * thread gets to them, one pending callback reads the latest state and hands it
+ * to the listeners. It does so even if that is the state they saw last, since
+ * an attempt which failed before the main thread ran (none, connecting, none)
+ * still ends the attempt the UI started. That path reuses a single Runnable, so
+ * it creates no messages or bundles. The other events are rare and delivered in
+ * order. Listeners are removed when their lifecycle owner is destroyed.
+ */
+class ConnectionEventDispatcher {
+
+    private final BluetoothConnectService mService;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Registered listeners, only touched on the main thread. Replaced as a
+     * whole on every change, so a listener may add or remove listeners while
+     * the event is delivered
+     */
+    private ConnectionListener[] mListeners = new ConnectionListener[0];
+
+    /**
+     * Observers removing the listeners with their owners, main thread only
+     */
+    private final Map<ConnectionListener, OwnerObserver> mObservers = new HashMap<>();
+
+    private final AtomicBoolean mStatePending = new AtomicBoolean();
+
+    // Last state delivered, main thread only
+    private int mDeliveredState = -1;
+    private int mDeliveredDevices = -1;
+
+    private final Runnable mDeliverState = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag first, a later change posts again
+            mStatePending.set(false);
+            int state = mService.getState();
+            int devices = mService.getConnectedDeviceCount();
+            mDeliveredState = state;
+            mDeliveredDevices = devices;
+            for (ConnectionListener listener : mListeners) {
+                listener.onStateChanged(state, devices);
+            }
+        }
+    };
+
+    ConnectionEventDispatcher(BluetoothConnectService service) {
+        mService = service;
+    }
+
+    /**
+     * Add a listener until the owner is destroyed. Call on the main thread.
+     */
+    void addListener(LifecycleOwner owner, ConnectionListener listener) {
+        Lifecycle lifecycle = owner.getLifecycle();
+        if (lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            return;
+        }
+        // Added again, e.g. with a new view: bind it to the new owner only
+        removeListener(listener);
+        ConnectionListener[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        mListeners = listeners;
+        OwnerObserver observer = new OwnerObserver(lifecycle, listener);
+        mObservers.put(listener, observer);
+        lifecycle.addObserver(observer);
+
+        // Bring the new listener up to date
+        if (mDeliveredState >= 0) {
+            listener.onStateChanged(mDeliveredState, mDeliveredDevices);
+        }
+    }
+
+    /**
+     * Remove a listener. Call on the main thread.
+     */
+    void removeListener(ConnectionListener listener) {
+        OwnerObserver observer = mObservers.remove(listener);
+        if (observer != null) {
+            observer.mmLifecycle.removeObserver(observer);
+        }
+        ConnectionListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                ConnectionListener[] remaining = new ConnectionListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                mListeners = remaining;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedule the delivery of the current state, unless one is pending
+     */
+    void postStateChanged() {
+        if (mStatePending.compareAndSet(false, true)) {
+            mMainHandler.post(mDeliverState);
+        }
+    }
+
+    void postDeviceConnected(final String address, final String name) {
+        mMainHandler.post(() -> {
+            for (ConnectionListener listener : mListeners) {
+                listener.onDeviceConnected(address, name);
+            }
+        });
+    }
+
+    void postConnectionFailed(final String address, final boolean reconnecting) {
+        mMainHandler.post(() -> {
+            for (ConnectionListener listener : mListeners) {
+                listener.onConnectionFailed(address, reconnecting);
+            }
+        });
+    }
+
+    void postConnectionLost(final String address, final boolean reconnecting) {
+        mMainHandler.post(() -> {
+            for (ConnectionListener listener : mListeners) {
+                listener.onConnectionLost(address, reconnecting);
+            }
+        });
+    }
+
+    void postDisconnected() {
+        mMainHandler.post(() -> {
+            for (ConnectionListener listener : mListeners) {
+                listener.onDisconnected();
+            }
+        });
+    }
+
+    /**
+     * Removes a listener when its owner is destroyed
+     */
+    private class OwnerObserver implements LifecycleEventObserver {
+        private final Lifecycle mmLifecycle;
+        private final ConnectionListener mmListener;
+
+        OwnerObserver(Lifecycle lifecycle, ConnectionListener listener) {
+            mmLifecycle = lifecycle;
+            mmListener = listener;
+        }
+
+        @Override
+        public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+            if (event == Lifecycle.Event.ON_DESTROY) {
+                removeListener(mmListener);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.LifecycleService;
+
+/**
+ * Hosts the {@link BluetoothConnectService}, so the connections and the send path
+ * outlive the UI: the fragment binds to it, and a recreated fragment finds the
+ * links as it left them. While a device is connected or being connected, the
+ * service runs in the foreground and keeps streaming with the app in the
+ * background. It stops once the last device is gone and nobody is bound.
+ */
+public class ConnectionHostService extends LifecycleService {
+
+    private static final String TAG = "ConnectionHostService";
+
+    private static final String CHANNEL_ID = "connection";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * The hosted service, created ahead of the host by a launch fast connect
+     */
+    private static BluetoothConnectService sConnectService;
+
+    private final IBinder mBinder = new LocalBinder();
+    private BluetoothConnectService mConnectService;
+    private NotificationManager mNotificationManager;
+    private boolean mForeground;
+
+    /**
+     * Gives the bound UI the hosted service, same process only
+     */
+    public class LocalBinder extends Binder {
+        public BluetoothConnectService getConnectService() {
+            return mConnectService;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = getSystemService(NotificationManager.class);
+        mNotificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                getString(R.string.notification_channel_connection), NotificationManager.IMPORTANCE_LOW));
+
+        mConnectService = obtainConnectService(this);
+        mConnectService.addConnectionListener(this, mConnectionListener);
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(@NonNull Intent intent) {
+        super.onBind(intent);
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+        super.onStartCommand(intent, flags, startId);
+        // The links are gone with the process, don't come back empty-handed
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        mConnectService.stopRecording();
+        mConnectService.stop();
+        synchronized (ConnectionHostService.class) {
+            if (sConnectService == mConnectService) {
+                sConnectService = null;
+            }
+        }
+        super.onDestroy();
+    }
+
+    private static synchronized BluetoothConnectService obtainConnectService(Context context) {
+        if (sConnectService == null) {
+            sConnectService = new BluetoothConnectService(context.getApplicationContext());
+        }
+        return sConnectService;
+    }
+
+    /**
+     * Connect to the device connected last, without waiting for the UI to come up
+     * and bind. The host is started and takes the connection over. Call on the
+     * main thread with the Bluetooth permissions granted.
+     *
+     * @param context The launching Activity
+     * @return The address of the device being connected, null if there is none,
+     * Bluetooth is off or the connections are already running
+     */
+    public static String connectLastDevice(Context context) {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        String address = new LastDeviceStore(context).get();
+        if (adapter == null || !adapter.isEnabled()
+                || address == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        BluetoothConnectService service = obtainConnectService(context);
+        if (service.getState() != BluetoothConnectService.STATE_NONE) {
+            return null;
+        }
+        Log.d(TAG, "fast connect to " + address);
+        service.connect(adapter.getRemoteDevice(address));
+        context.startService(new Intent(context, ConnectionHostService.class));
+        return address;
+    }
+
+    /**
+     * Moves the service in and out of the foreground with the connection state
+     */
+    private final ConnectionListener mConnectionListener = new ConnectionListener() {
+        @Override
+        public void onStateChanged(int state, int connectedDevices) {
+            if (state == BluetoothConnectService.STATE_CONNECTED
+                    || state == BluetoothConnectService.STATE_CONNECTING) {
+                Notification notification = buildNotification(state, connectedDevices);
+                if (mForeground) {
+                    mNotificationManager.notify(NOTIFICATION_ID, notification);
+                    return;
+                }
+                // Keep running when the UI unbinds
+                ContextCompat.startForegroundService(ConnectionHostService.this,
+                        new Intent(ConnectionHostService.this, ConnectionHostService.class));
+                startForeground(NOTIFICATION_ID, notification);
+                mForeground = true;
+            } else {
+                if (mForeground) {
+                    stopForeground(STOP_FOREGROUND_REMOVE);
+                    mForeground = false;
+                }
+                // Lives on while the UI is bound
+                stopSelf();
+            }
+        }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+        }
+
+        @Override
+        public void onConnectionFailed(String address, boolean reconnecting) {
+        }
+
+        @Override
+        public void onConnectionLost(String address, boolean reconnecting) {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    private Notification buildNotification(int state, int connectedDevices) {
+        Intent intent = new Intent(this, MainActivity.class)
+                .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent,
+                PendingIntent.FLAG_IMMUTABLE);
+        String text = state == BluetoothConnectService.STATE_CONNECTED
+                ? getResources().getQuantityString(R.plurals.notification_connected,
+                        connectedDevices, connectedDevices)
+                : getString(R.string.title_connecting);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+}
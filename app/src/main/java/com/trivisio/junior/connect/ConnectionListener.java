@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+/**
+ * Receives the connection events of the {@link BluetoothConnectService} on the
+ * main thread.
+ *
+ * @see BluetoothConnectService#addConnectionListener
+ */
+public interface ConnectionListener {
+
+    /**
+     * The connection state or the number of connected devices changed. Quick
+     * successions of changes are coalesced into the latest one.
+     *
+     * @param state            One of the BluetoothConnectService STATE_ constants
+     * @param connectedDevices The number of connected devices
+     */
+    void onStateChanged(int state, int connectedDevices);
+
+    /**
+     * A device got connected.
+     *
+     * @param address The MAC address of the device
+     * @param name    The device name, null if unknown
+     */
+    void onDeviceConnected(String address, String name);
+
+    /**
+     * A connection attempt failed and won't be retried.
+     *
+     * @param address      The MAC address of the device
+     * @param reconnecting true if it was an automatic reconnect attempt
+     */
+    void onConnectionFailed(String address, boolean reconnecting);
+
+    /**
+     * The connection to a device was lost.
+     *
+     * @param address      The MAC address of the device
+     * @param reconnecting true if the service tries to bring it back
+     */
+    void onConnectionLost(String address, boolean reconnecting);
+
+    /**
+     * The last device was lost after the attempts to bring it back.
+     */
+    void onDisconnected();
+}
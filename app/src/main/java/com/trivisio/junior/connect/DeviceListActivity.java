@@ -31,19 +31,24 @@ import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.util.ArrayList;
+import java.util.Locale;
 import java.util.Set;
 
 /**
  * This Activity appears as a dialog. It lists any paired devices and
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
- * Activity in the result Intent.
+ * Activity in the result Intent. With several paired Juniors, the user can
+ * instead let the app connect to the first one that answers; the addresses
+ * of all of them are sent back then.
  */
 public class DeviceListActivity extends Activity {
 
@@ -56,6 +61,12 @@ public class DeviceListActivity extends Activity {
      * Return Intent extra
      */
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
+    public static String EXTRA_DEVICE_ADDRESSES = "device_addresses";
+
+    /**
+     * Intent extra, true to offer connecting to the first device which answers
+     */
+    public static String EXTRA_ALLOW_ANY = "allow_any";
     private static final String TARGET_DEVICE_PFX = "junior";
     private static final int NAME_ADDRESS_OFFSET = 17;
 
@@ -111,13 +122,30 @@ public class DeviceListActivity extends Activity {
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
 
         // If there are paired devices, add each one to the ArrayAdapter
+        final ArrayList<String> juniors = new ArrayList<>();
         if (pairedDevices.size() > 0) {
             for (BluetoothDevice device : pairedDevices) {
 //                if (device.getName().toLowerCase().startsWith(TARGET_DEVICE_PFX)) {
                     pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
 //                }
+                String name = device.getName();
+                if (name != null && name.toLowerCase(Locale.ROOT).startsWith(TARGET_DEVICE_PFX)) {
+                    juniors.add(device.getAddress());
+                }
             }
         }
+
+        // Race the paired Juniors, or all the paired devices if none is named so
+        if (juniors.isEmpty()) {
+            for (BluetoothDevice device : pairedDevices) {
+                juniors.add(device.getAddress());
+            }
+        }
+        Button anyButton = findViewById(R.id.button_connect_any);
+        if (getIntent().getBooleanExtra(EXTRA_ALLOW_ANY, false) && juniors.size() > 1) {
+            anyButton.setVisibility(View.VISIBLE);
+            anyButton.setOnClickListener(v -> onDevicesFound(juniors));
+        }
         if (pairedDevicesArrayAdapter.getCount() == 0) {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
             String noDevices = getResources().getText(R.string.none_paired).toString();
@@ -179,6 +207,21 @@ public class DeviceListActivity extends Activity {
         finish();
     }
 
+    private void onDevicesFound(ArrayList<String> addresses) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S &&
+                ActivityCompat.checkSelfPermission(DeviceListActivity.this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+
+        // Cancel discovery because it's costly and we're about to connect
+        mBtAdapter.cancelDiscovery();
+
+        Intent intent = new Intent();
+        intent.putExtra(EXTRA_DEVICE_ADDRESSES, addresses.toArray(new String[0]));
+        setResult(Activity.RESULT_OK, intent);
+        finish();
+    }
+
     /**
      * The BroadcastReceiver that listens for discovered devices and changes the title when
      * discovery is finished
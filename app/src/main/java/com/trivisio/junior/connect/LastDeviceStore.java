@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent address of the device connected last, so the next launch can
+ * connect to it without going through the device list.
+ */
+public class LastDeviceStore {
+
+    private static final String PREFS_NAME = "last_device";
+    private static final String KEY_ADDRESS = "address";
+
+    private final SharedPreferences mPrefs;
+
+    public LastDeviceStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The MAC address of the device connected last, null if there is none
+     */
+    public String get() {
+        return mPrefs.getString(KEY_ADDRESS, null);
+    }
+
+    /**
+     * @param address The MAC address of the device which has just connected
+     */
+    public void put(String address) {
+        if (!address.equals(get())) {
+            mPrefs.edit().putString(KEY_ADDRESS, address).apply();
+        }
+    }
+}
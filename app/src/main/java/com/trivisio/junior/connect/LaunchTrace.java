@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Timestamps of the launch steps, from the start of the process to the first
+ * device connected, logged once as a single line so launches can be compared.
+ * Call on the main thread.
+ */
+public class LaunchTrace {
+
+    private static final String TAG = "LaunchTrace";
+
+    private static final StringBuilder sSteps = new StringBuilder();
+    private static long sLaunchedAt;
+    private static boolean sTracing;
+
+    private LaunchTrace() {
+    }
+
+    /**
+     * Start tracing a launch. The first launch of the process is timed from the
+     * start of the process, a later one from now.
+     */
+    public static void begin() {
+        sLaunchedAt = sLaunchedAt == 0 ? Process.getStartUptimeMillis() : SystemClock.uptimeMillis();
+        sSteps.setLength(0);
+        sTracing = true;
+    }
+
+    /**
+     * @param step Name of the launch step which has just completed
+     */
+    public static void mark(String step) {
+        if (!sTracing) {
+            return;
+        }
+        if (sSteps.length() > 0) {
+            sSteps.append(", ");
+        }
+        sSteps.append(step).append(" +").append(SystemClock.uptimeMillis() - sLaunchedAt).append(" ms");
+    }
+
+    /**
+     * Log the launch and stop tracing it.
+     *
+     * @param step Name of the last launch step
+     */
+    public static void end(String step) {
+        if (!sTracing) {
+            return;
+        }
+        mark(step);
+        sTracing = false;
+        Log.i(TAG, "launch: " + sSteps);
+    }
+}
@@ -16,22 +16,35 @@
 
 package com.trivisio.junior.connect;
 
+import android.util.Log;
+
 /**
- * Defines several constants used between {@link BluetoothConnectService} and the UI.
+ * Sends the debug output of the {@link ConnectionManager} to logcat.
  */
-public interface Constants {
+public class LogcatConnectionLog implements ConnectionLog {
+    private final String mTag;
+
+    public LogcatConnectionLog(String tag) {
+        mTag = tag;
+    }
+
+    @Override
+    public void d(String msg) {
+        Log.d(mTag, msg);
+    }
 
-    // Message types sent from the BluetoothConnectService Handler
-    int MESSAGE_STATE_CHANGE = 1;
-    int MESSAGE_READ = 2;
-    int MESSAGE_WRITE = 3;
-    int MESSAGE_DEVICE_NAME = 4;
-    int MESSAGE_TOAST = 5;
-    int CONNECTED = 6;
-    int DISCONNECTED = 7;
+    @Override
+    public void i(String msg) {
+        Log.i(mTag, msg);
+    }
 
-    // Key names received from the BluetoothConnectService Handler
-    String DEVICE_NAME = "device_name";
-    String TOAST = "toast";
+    @Override
+    public void w(String msg) {
+        Log.w(mTag, msg);
+    }
 
+    @Override
+    public void e(String msg, Throwable tr) {
+        Log.e(mTag, msg, tr);
+    }
 }
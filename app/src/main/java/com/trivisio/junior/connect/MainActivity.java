@@ -16,6 +16,9 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentTransaction;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A simple launcher activity containing a summary sample description, sample log and a custom
  * {@link Fragment} which can display a view.
@@ -26,7 +29,7 @@ import androidx.fragment.app.FragmentTransaction;
 public class MainActivity extends FragmentActivity {
 
     public static final String TAG = "MainActivity";
-    private static final int REQUEST_BT_PERMISSIONS = 222;
+    private static final int REQUEST_PERMISSIONS = 222;
 
     private boolean doubleBackToExitPressedOnce;
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
@@ -37,26 +40,49 @@ public class MainActivity extends FragmentActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mSavedInstanceState = savedInstanceState;
+        if (savedInstanceState == null) {
+            LaunchTrace.begin();
+        }
         setContentView(R.layout.activity_main);
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S &&
-                (ContextCompat.checkSelfPermission(MainActivity.this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED
-                    || ContextCompat.checkSelfPermission(MainActivity.this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED)) {
-                ActivityCompat.requestPermissions(
-                        MainActivity.this,
-                        new String[]{Manifest.permission.BLUETOOTH_SCAN, Manifest.permission.BLUETOOTH_CONNECT}, REQUEST_BT_PERMISSIONS);
-                return;
+        List<String> missing = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            addIfMissing(missing, Manifest.permission.BLUETOOTH_SCAN);
+            addIfMissing(missing, Manifest.permission.BLUETOOTH_CONNECT);
+        }
+        // The ongoing notification of the ConnectionHostService is only shown
+        // with it from Android 13 on, the connection works without it
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            addIfMissing(missing, Manifest.permission.POST_NOTIFICATIONS);
+        }
+        if (!missing.isEmpty()) {
+            ActivityCompat.requestPermissions(
+                    MainActivity.this, missing.toArray(new String[0]), REQUEST_PERMISSIONS);
+            return;
         }
 
         continueInit();
     }
 
+    private void addIfMissing(List<String> permissions, String permission) {
+        if (ContextCompat.checkSelfPermission(MainActivity.this, permission) != PackageManager.PERMISSION_GRANTED) {
+            permissions.add(permission);
+        }
+    }
+
+    private boolean hasBluetoothPermissions() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || (ContextCompat.checkSelfPermission(MainActivity.this, Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED
+                && ContextCompat.checkSelfPermission(MainActivity.this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED);
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         // do not call super
-        if (requestCode == REQUEST_BT_PERMISSIONS) {// If request is cancelled, the result arrays are empty.
-            if (grantResults.length > 1 &&
-                    grantResults[0] == PackageManager.PERMISSION_GRANTED && grantResults[1] == PackageManager.PERMISSION_GRANTED) {
+        if (requestCode == REQUEST_PERMISSIONS) {
+            // Only the Bluetooth permissions are required, the request may
+            // also have been cancelled
+            if (hasBluetoothPermissions()) {
                 continueInit();
             } else {
                 Toast.makeText(MainActivity.this, "Bluetooth permissions are required. Cannot continue.", Toast.LENGTH_LONG).show();
@@ -66,8 +92,16 @@ public class MainActivity extends FragmentActivity {
 
     private void continueInit() {
         if (mSavedInstanceState == null) {
+            LaunchTrace.mark("permissions");
+            // Start connecting to the last device right away, the connect
+            // runs on its own thread while the fragment is set up
+            String fastConnectAddress = ConnectionHostService.connectLastDevice(this);
+            if (fastConnectAddress != null) {
+                LaunchTrace.mark("fast connect");
+            }
+
             FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
-            bluetoothConnectFragment = new BluetoothConnectFragment();
+            bluetoothConnectFragment = BluetoothConnectFragment.newInstance(fastConnectAddress);
             transaction.replace(R.id.sample_content_fragment, bluetoothConnectFragment);
             transaction.commit();
         }
@@ -95,8 +129,10 @@ public class MainActivity extends FragmentActivity {
                 }
             }, 2000);
         } else {
-            if (bluetoothConnectFragment != null) {
-                bluetoothConnectFragment.disconnectDevice();
+            // The field is not set when the fragment was restored
+            Fragment fragment = getSupportFragmentManager().findFragmentById(R.id.sample_content_fragment);
+            if (fragment instanceof BluetoothConnectFragment) {
+                ((BluetoothConnectFragment) fragment).disconnectDevice();
             }
             super.onBackPressed();
         }
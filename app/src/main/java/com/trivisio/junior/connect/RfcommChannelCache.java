@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent map of device addresses to the RFCOMM channel their SPP service was
+ * found on, so a reconnect can skip the SDP lookup. It is only filled where
+ * {@link BluetoothTransport#getChannel()} can read the channel, which the
+ * hidden API restrictions prevent for apps targeting API 28 or later.
+ */
+public class RfcommChannelCache {
+
+    private static final String PREFS_NAME = "rfcomm_channels";
+
+    private final SharedPreferences mPrefs;
+
+    public RfcommChannelCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param address The device MAC address
+     * @return The cached channel, -1 if there is none
+     */
+    public int get(String address) {
+        return mPrefs.getInt(address, -1);
+    }
+
+    /**
+     * @param address The device MAC address
+     * @param channel The RFCOMM channel the device accepted the connection on
+     */
+    public void put(String address, int channel) {
+        if (get(address) != channel) {
+            mPrefs.edit().putInt(address, channel).apply();
+        }
+    }
+
+    /**
+     * Forget the channel of the device, e.g. when connecting to it failed.
+     *
+     * @param address The device MAC address
+     */
+    public void remove(String address) {
+        mPrefs.edit().remove(address).apply();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Turns a burst of text edits into a paced series of ticker updates.
+ * <p>
+ * An update is flushed once the edits pause for the debounce time, but no later
+ * than the max latency after the first unflushed edit, so continuous typing or
+ * dictation still reaches the device. Flushes are spaced to stay within the
+ * frames per second budget. All the work runs on the thread of the given Handler.
+ */
+public class TickerStreamer {
+
+    private final Handler mHandler;
+    private final Runnable mFlushAction;
+
+    private long mDebounceMs;
+    private long mMaxLatencyMs;
+    private long mMinIntervalMs;
+
+    private boolean mEnabled;
+
+    /**
+     * Uptime of the first edit which wasn't flushed yet, 0 if there is none
+     */
+    private long mFirstPendingEdit;
+    private long mLastFlush;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFirstPendingEdit = 0;
+            mLastFlush = SystemClock.uptimeMillis();
+            mFlushAction.run();
+        }
+    };
+
+    /**
+     * @param handler            Handler of the thread the edits come from
+     * @param flushAction        Action sending the current frame
+     * @param debounceMs         Pause in the edits after which the update is flushed
+     * @param maxLatencyMs       Maximum delay between an edit and the flush
+     * @param maxFramesPerSecond Update budget
+     */
+    public TickerStreamer(Handler handler, Runnable flushAction,
+                          long debounceMs, long maxLatencyMs, int maxFramesPerSecond) {
+        mHandler = handler;
+        mFlushAction = flushAction;
+        setTiming(debounceMs, maxLatencyMs, maxFramesPerSecond);
+    }
+
+    /**
+     * Change the timing of the updates.
+     *
+     * @param debounceMs         Pause in the edits after which the update is flushed
+     * @param maxLatencyMs       Maximum delay between an edit and the flush
+     * @param maxFramesPerSecond Update budget
+     */
+    public void setTiming(long debounceMs, long maxLatencyMs, int maxFramesPerSecond) {
+        if (maxFramesPerSecond <= 0) {
+            throw new IllegalArgumentException("maxFramesPerSecond must be positive");
+        }
+        mDebounceMs = debounceMs;
+        mMaxLatencyMs = Math.max(debounceMs, maxLatencyMs);
+        mMinIntervalMs = 1000L / maxFramesPerSecond;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            cancel();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Schedule an update for the edit which has just happened.
+     */
+    public void onEdit() {
+        if (!mEnabled) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingEdit == 0) {
+            mFirstPendingEdit = now;
+        }
+        long flushAt = Math.min(now + mDebounceMs, mFirstPendingEdit + mMaxLatencyMs);
+        flushAt = Math.max(flushAt, mLastFlush + mMinIntervalMs);
+
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postAtTime(mFlush, flushAt);
+    }
+
+    /**
+     * Drop the scheduled update.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mFirstPendingEdit = 0;
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Stress test of the connection lifecycle under connect and disconnect storms.
+ * <p>
+ * The harness drives the {@link ConnectionManager} which BluetoothConnectService
+ * runs over RFCOMM, over a {@link TransportFactory} of fake {@link Transport}s
+ * instead, which delay and fail the connects, fail the cached channel, slow the
+ * writes down and get dropped. Worker threads call connect(), addDevice(),
+ * removeDevice(), start(), stop(), write() and writeControl() and drop links at
+ * random for a round, then the harness checks that:
+ * <ul>
+ * <li>the manager settles: no device stays connecting, every connected device
+ * has one live socket, and there are as many ConnectedThreads and FrameSenders
+ * as connected devices and no other connection thread or socket;</li>
+ * <li>the UI was told the final state of the manager;</li>
+ * <li>stop() leaves no connection thread and no socket behind;</li>
+ * <li>a clean connect on the same manager still gets a frame through, and the
+ * successful connects timed every phase up to the first write.</li>
+ * </ul>
+ * A worker stuck in a call for the quiesce timeout is reported as a deadlock.
+ * <p>
+ * Run with {@code ./gradlew :core:connectionStress}, optionally with
+ * {@code --args="<seconds> <threads> <seed>"}. Prints the rates of the operations
+ * and of the state transitions, and exits with status 1 on the first failure.
+ */
+public class ConnectionStress {
+
+    private static final int DEVICES = 4;
+    private static final long ROUND_MS = 1000;
+
+    // Faults of the fake links
+    private static final int MAX_CONNECT_DELAY_MS = 5;
+    private static final int CONNECT_FAILURE_PERCENT = 25;
+    private static final int CACHED_CHANNEL_FAILURE_PERCENT = 25;
+    private static final int MAX_WRITE_DELAY_MS = 2;
+    private static final int MAX_SOCKET_CREATE_MICROS = 1000;
+
+    // Reconnect timing, a short fixed delay keeps the reconnects in the storm
+    private static final ReconnectPolicy RECONNECT_POLICY = new ReconnectPolicy(5, 5, 1, 0, 3, 0);
+
+    // Time the service gets to settle, and a worker to return from a call
+    private static final long QUIESCE_TIMEOUT_MS = 5000;
+
+    private enum Operation {
+        CONNECT, ADD_DEVICE, REMOVE_DEVICE, START, STOP, WRITE, WRITE_CONTROL, DROP_LINK
+    }
+
+    // Relative frequency of the operations, in the order of Operation
+    private static final int[] WEIGHTS = {4, 10, 6, 1, 1, 50, 8, 10};
+
+    // Pause of a worker between two operations, so some connects complete
+    private static final int MAX_THINK_MICROS = 4000;
+
+    // Names of the threads of the manager
+    private static final String CONNECT_THREAD = "ConnectThread";
+    private static final String CONNECTED_THREAD = "ConnectedThread";
+    private static final String FRAME_SENDER = "FrameSender";
+    private static final String[] LIFECYCLE_THREADS = {
+            CONNECT_THREAD, CONNECTED_THREAD, FRAME_SENDER, "ConnectScheduler", "ConnectionCloser"
+    };
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        Counters counters = new Counters();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        int rounds = 0;
+        do {
+            long roundSeed = seed + rounds;
+            try {
+                round(roundSeed, threads, counters);
+            } catch (AssertionError e) {
+                System.out.println("round seed " + roundSeed + ": " + e.getMessage());
+                System.exit(1);
+            }
+            rounds++;
+        } while (System.nanoTime() < end);
+
+        counters.print();
+        System.out.println("ok, " + rounds + " rounds of " + ROUND_MS + " ms, "
+                + threads + " threads, seed " + seed);
+    }
+
+    private static void round(long seed, int threads, Counters counters) throws Exception {
+        Random random = new Random(seed);
+        FakeNetwork network = new FakeNetwork(random.nextLong(), counters);
+        FakeUserInterface ui = new FakeUserInterface(counters);
+        ConnectionManager manager = new ConnectionManager(network, ui, ConnectionLog.NONE);
+        ui.mManager = manager;
+        manager.setReconnectPolicy(RECONNECT_POLICY);
+        try {
+            Worker[] workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker(manager, network, random.nextLong(), counters);
+            }
+            long stormStart = System.nanoTime();
+            for (Worker worker : workers) {
+                worker.start();
+            }
+            Thread.sleep(ROUND_MS);
+            for (Worker worker : workers) {
+                worker.mmRunning = false;
+            }
+            for (Worker worker : workers) {
+                worker.join(QUIESCE_TIMEOUT_MS);
+                if (worker.isAlive()) {
+                    fail("deadlock, a worker is stuck in" + stackOf(worker));
+                }
+            }
+            counters.mStormNanos.addAndGet(System.nanoTime() - stormStart);
+
+            // Only the connects in flight and the reconnects are left
+            awaitNull(() -> checkSettled(manager, network, ui));
+            manager.stop();
+            awaitNull(() -> checkStopped(manager, network, ui));
+
+            // The manager still works after the storm
+            network.setFaults(false);
+            manager.connect(address(0));
+            awaitNull(() -> manager.getState() == ConnectionState.STATE_CONNECTED
+                    ? checkSettled(manager, network, ui) : "a clean connect didn't complete");
+            long written = network.getWrittenBytes();
+            manager.write(new byte[]{'o', 'k', '\n'});
+            awaitNull(() -> network.getWrittenBytes() > written
+                    ? null : "no frame was written after a clean connect");
+            awaitNull(() -> checkConnectPhases(manager));
+            manager.stop();
+            awaitNull(() -> checkStopped(manager, network, ui));
+        } finally {
+            manager.stop();
+            ui.shutdown();
+        }
+    }
+
+    /**
+     * @return What is still in flight, null once the manager has settled
+     */
+    private static String checkSettled(ConnectionManager manager, FakeNetwork network,
+                                       FakeUserInterface ui) {
+        int connected = 0;
+        for (DeviceStats device : manager.getDeviceStats()) {
+            if (device.state != ConnectionState.STATE_CONNECTED) {
+                return device.address + " stays in state " + device.state;
+            }
+            connected++;
+        }
+        if (network.getOpenCount() != connected) {
+            return network.getOpenCount() + " sockets are open for " + connected + " connected devices";
+        }
+        if (network.getLiveCount() != connected) {
+            return network.getLiveCount() + " sockets are up for " + connected + " connected devices";
+        }
+        Map<String, Integer> threads = getLiveThreads();
+        if (threads.get(CONNECTED_THREAD) != connected || threads.get(FRAME_SENDER) != connected
+                || threads.get(CONNECT_THREAD) != 0) {
+            return "threads " + threads + " are alive for " + connected + " connected devices";
+        }
+        return ui.check();
+    }
+
+    /**
+     * @return What is left after stop(), null once nothing is
+     */
+    private static String checkStopped(ConnectionManager manager, FakeNetwork network,
+                                       FakeUserInterface ui) {
+        if (!manager.getDeviceStats().isEmpty()) {
+            return manager.getDeviceStats().size() + " devices are left after stop()";
+        }
+        if (network.getOpenCount() != 0) {
+            return network.getOpenCount() + " sockets are left open after stop()";
+        }
+        for (Map.Entry<String, Integer> entry : getLiveThreads().entrySet()) {
+            if (entry.getValue() != 0) {
+                return entry.getValue() + " " + entry.getKey() + " threads are alive after stop()";
+            }
+        }
+        return ui.check();
+    }
+
+    /**
+     * @return The phase missing from a successful connect attempt, null if
+     * every attempt timed all the phases
+     */
+    private static String checkConnectPhases(ConnectionManager manager) {
+        ConnectStats clean = manager.getConnectStats(address(0));
+        if (clean == null || clean.getSuccessCount() == 0) {
+            return "the clean connect wasn't recorded";
+        }
+        for (int device = 0; device < DEVICES; device++) {
+            ConnectStats stats = manager.getConnectStats(address(device));
+            if (stats == null || stats.getSuccessCount() == 0) {
+                continue;
+            }
+            for (int phase = 0; phase <= ConnectTimeline.PHASE_COUNT; phase++) {
+                if (stats.getPercentileNanos(phase, 0) < 0) {
+                    return address(device) + " connected without timing the phase "
+                            + (phase == ConnectTimeline.PHASE_COUNT ? "total" : ConnectTimeline.getPhaseName(phase));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of the live threads of the manager, by name
+     */
+    private static Map<String, Integer> getLiveThreads() {
+        Map<String, Integer> live = new LinkedHashMap<>();
+        for (String name : LIFECYCLE_THREADS) {
+            live.put(name, 0);
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            Integer count = live.get(thread.getName());
+            if (count != null && thread.isAlive()) {
+                live.put(thread.getName(), count + 1);
+            }
+        }
+        return live;
+    }
+
+    private static String address(int device) {
+        return "00:00:00:00:00:0" + device;
+    }
+
+    /**
+     * Wait until the check passes, i.e. returns null
+     */
+    private static void awaitNull(Supplier<String> check) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIESCE_TIMEOUT_MS);
+        String problem;
+        while ((problem = check.get()) != null) {
+            if (System.nanoTime() > deadline) {
+                fail(problem);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static String stackOf(Thread thread) {
+        StringBuilder stack = new StringBuilder();
+        for (StackTraceElement element : thread.getStackTrace()) {
+            stack.append("\n    at ").append(element);
+        }
+        return stack.toString();
+    }
+
+    private static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // The fake links don't fail to close
+        }
+    }
+
+    /**
+     * Operation and transition counts of all the rounds
+     */
+    private static class Counters {
+        private final AtomicLongArray mOperations = new AtomicLongArray(Operation.values().length);
+        private final AtomicLongArray mTransitions = new AtomicLongArray(ConnectionState.STATE_CONNECTED + 1);
+        private final AtomicLong mSocketsOpened = new AtomicLong();
+        private final AtomicLong mLinksDropped = new AtomicLong();
+        private final AtomicLong mFramesWritten = new AtomicLong();
+        private final AtomicLong mWritesFailed = new AtomicLong();
+        private final AtomicLong mStormNanos = new AtomicLong();
+
+        void print() {
+            double seconds = mStormNanos.get() / 1e9;
+            System.out.println(String.format(Locale.US, "%-16s %10s %10s", "", "count", "per s"));
+            for (Operation operation : Operation.values()) {
+                print(operation.name().toLowerCase(Locale.US), mOperations.get(operation.ordinal()), seconds);
+            }
+            print("-> connecting", mTransitions.get(ConnectionState.STATE_CONNECTING), seconds);
+            print("-> connected", mTransitions.get(ConnectionState.STATE_CONNECTED), seconds);
+            print("-> none", mTransitions.get(ConnectionState.STATE_NONE), seconds);
+            print("sockets opened", mSocketsOpened.get(), seconds);
+            print("links dropped", mLinksDropped.get(), seconds);
+            print("frames written", mFramesWritten.get(), seconds);
+            print("writes failed", mWritesFailed.get(), seconds);
+        }
+
+        private static void print(String name, long count, double seconds) {
+            System.out.println(String.format(Locale.US, "%-16s %10d %10.1f", name, count, count / seconds));
+        }
+    }
+
+    /**
+     * Calls the service at random until told to stop
+     */
+    private static class Worker extends Thread {
+        private final ConnectionManager mmManager;
+        private final FakeNetwork mmNetwork;
+        private final Random mmRandom;
+        private final Counters mmCounters;
+        private final byte[][] mmFrames = new byte[4][];
+        private volatile boolean mmRunning = true;
+
+        Worker(ConnectionManager manager, FakeNetwork network, long seed, Counters counters) {
+            super("StressWorker");
+            mmManager = manager;
+            mmNetwork = network;
+            mmRandom = new Random(seed);
+            mmCounters = counters;
+            for (int i = 0; i < mmFrames.length; i++) {
+                mmFrames[i] = new byte[10 + mmRandom.nextInt(120)];
+            }
+        }
+
+        @Override
+        public void run() {
+            int total = 0;
+            for (int weight : WEIGHTS) {
+                total += weight;
+            }
+            while (mmRunning) {
+                int pick = mmRandom.nextInt(total);
+                int index = 0;
+                while (pick >= WEIGHTS[index]) {
+                    pick -= WEIGHTS[index++];
+                }
+                Operation operation = Operation.values()[index];
+                String address = address(mmRandom.nextInt(DEVICES));
+                switch (operation) {
+                    case CONNECT:
+                        mmManager.connect(address);
+                        break;
+                    case ADD_DEVICE:
+                        mmManager.addDevice(address);
+                        break;
+                    case REMOVE_DEVICE:
+                        mmManager.removeDevice(address);
+                        break;
+                    case START:
+                        mmManager.start();
+                        break;
+                    case STOP:
+                        mmManager.stop();
+                        break;
+                    case WRITE:
+                        mmManager.write(mmFrames[mmRandom.nextInt(mmFrames.length)]);
+                        break;
+                    case WRITE_CONTROL:
+                        mmManager.writeControl(mmFrames[0]);
+                        break;
+                    case DROP_LINK:
+                        mmNetwork.dropLink(mmRandom);
+                        break;
+                }
+                mmCounters.mOperations.incrementAndGet(index);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(mmRandom.nextInt(MAX_THINK_MICROS)));
+            }
+        }
+    }
+
+    /**
+     * Makes the fake links and decides their faults
+     */
+    private static class FakeNetwork implements TransportFactory {
+        private final Random mRandom;
+        private final Counters mCounters;
+        private final Set<FakeTransport> mOpen = ConcurrentHashMap.newKeySet();
+
+        // Stands in for the RFCOMM channel cache, the addresses with a channel
+        private final Set<String> mCachedChannels = ConcurrentHashMap.newKeySet();
+        private final AtomicLong mWrittenBytes = new AtomicLong();
+        private volatile boolean mFaults = true;
+
+        FakeNetwork(long seed, Counters counters) {
+            mRandom = new Random(seed);
+            mCounters = counters;
+        }
+
+        void setFaults(boolean faults) {
+            mFaults = faults;
+        }
+
+        /**
+         * Create a socket, which holds resources until it is closed
+         *
+         * @param cachedChannel Whether the socket is made for a cached RFCOMM channel
+         */
+        FakeTransport open(boolean cachedChannel) {
+            FakeTransport transport;
+            long createMicros;
+            synchronized (this) {
+                boolean fail = mFaults && (mRandom.nextInt(100) < CONNECT_FAILURE_PERCENT
+                        || cachedChannel && mRandom.nextInt(100) < CACHED_CHANNEL_FAILURE_PERCENT);
+                long delayMs = mFaults ? mRandom.nextInt(MAX_CONNECT_DELAY_MS + 1) : 0;
+                createMicros = mFaults ? mRandom.nextInt(MAX_SOCKET_CREATE_MICROS) : 0;
+                transport = new FakeTransport(this, delayMs, fail, mRandom.nextLong());
+            }
+            mOpen.add(transport);
+            mCounters.mSocketsOpened.incrementAndGet();
+            // Creating an RFCOMM socket is a binder call, anything may happen meanwhile
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(createMicros));
+            return transport;
+        }
+
+        @Override
+        public Transport createCachedTransport(String address) {
+            return mCachedChannels.contains(address) ? open(true) : null;
+        }
+
+        @Override
+        public Transport createTransport(String address) {
+            return open(false);
+        }
+
+        @Override
+        public void onTransportConnected(String address, Transport transport) {
+            mCachedChannels.add(address);
+        }
+
+        @Override
+        public void onCachedTransportFailed(String address) {
+            mCachedChannels.remove(address);
+        }
+
+        @Override
+        public boolean prepareConnect() {
+            return true;
+        }
+
+        @Override
+        public String getDeviceName(String address) {
+            return null;
+        }
+
+        void closed(FakeTransport transport) {
+            mOpen.remove(transport);
+        }
+
+        /**
+         * Drop a random connected link, as if the device went out of range
+         */
+        void dropLink(Random random) {
+            FakeTransport[] open = mOpen.toArray(new FakeTransport[0]);
+            if (open.length > 0 && open[random.nextInt(open.length)].drop()) {
+                mCounters.mLinksDropped.incrementAndGet();
+            }
+        }
+
+        int getOpenCount() {
+            return mOpen.size();
+        }
+
+        /**
+         * @return The number of connected links which weren't dropped
+         */
+        int getLiveCount() {
+            int count = 0;
+            for (FakeTransport transport : mOpen) {
+                if (transport.isLive()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        long getWrittenBytes() {
+            return mWrittenBytes.get();
+        }
+    }
+
+    /**
+     * A socket with injected faults. Like a BluetoothSocket, close() aborts a
+     * pending connect, read or write, and a write isn't interrupted otherwise.
+     */
+    private static class FakeTransport implements Transport {
+        private final FakeNetwork mNetwork;
+        private final long mConnectDelayMs;
+        private final boolean mFailConnect;
+        private final Random mRandom;
+
+        // Guarded by this
+        private boolean mConnected;
+        private boolean mDropped;
+        private boolean mClosed;
+
+        private final InputStream mInStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return read(new byte[1], 0, 1);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (FakeTransport.this) {
+                    // The device never talks, the read only ends with the link
+                    while (!mClosed && !mDropped) {
+                        waitUninterruptibly(0);
+                    }
+                    throw new IOException(mClosed ? "socket closed" : "connection reset");
+                }
+            }
+        };
+
+        private final OutputStream mOutStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (FakeTransport.this) {
+                    long delayMs = mNetwork.mFaults ? mRandom.nextInt(MAX_WRITE_DELAY_MS + 1) : 0;
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                    long remainingMs;
+                    while (!mClosed && !mDropped
+                            && (remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                        waitUninterruptibly(remainingMs);
+                    }
+                    if (mClosed || mDropped) {
+                        mNetwork.mCounters.mWritesFailed.incrementAndGet();
+                        throw new IOException("broken pipe");
+                    }
+                    mNetwork.mWrittenBytes.addAndGet(len);
+                    mNetwork.mCounters.mFramesWritten.incrementAndGet();
+                }
+            }
+        };
+
+        FakeTransport(FakeNetwork network, long connectDelayMs, boolean failConnect, long seed) {
+            mNetwork = network;
+            mConnectDelayMs = connectDelayMs;
+            mFailConnect = failConnect;
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mConnectDelayMs);
+            long remainingMs;
+            while (!mClosed && (remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                waitUninterruptibly(remainingMs);
+            }
+            if (mClosed) {
+                throw new IOException("socket closed");
+            }
+            if (mFailConnect) {
+                throw new IOException("read failed, socket might closed or timeout");
+            }
+            mConnected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutStream;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mNetwork.closed(this);
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return false if the link isn't up
+         */
+        synchronized boolean drop() {
+            if (!mConnected || mClosed || mDropped) {
+                return false;
+            }
+            mDropped = true;
+            notifyAll();
+            return true;
+        }
+
+        synchronized boolean isLive() {
+            return mConnected && !mDropped && !mClosed;
+        }
+
+        /**
+         * Blocking socket calls don't react to interrupts, only to close()
+         */
+        private void waitUninterruptibly(long timeoutMs) {
+            try {
+                wait(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Stands in for the main thread and the ConnectionEventDispatcher: delivers
+     * the latest state of the manager, coalescing the transitions
+     */
+    private static class FakeUserInterface implements ConnectionManager.Listener {
+        private final Counters mCounters;
+        private volatile ConnectionManager mManager;
+        // Drops the events of the closer threads left by a failed round
+        private final ExecutorService mMainThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "Main");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        private final AtomicBoolean mStatePending = new AtomicBoolean();
+        private volatile int mDeliveredState = -1;
+        private volatile int mDeliveredDevices = -1;
+        private final Runnable mDeliverState = () -> {
+            mStatePending.set(false);
+            mDeliveredState = mManager.getState();
+            mDeliveredDevices = mManager.getConnectedDeviceCount();
+        };
+
+        FakeUserInterface(Counters counters) {
+            mCounters = counters;
+        }
+
+        @Override
+        public void onStateChanged(String address, int state) {
+            mCounters.mTransitions.incrementAndGet(state);
+            if (mStatePending.compareAndSet(false, true)) {
+                mMainThread.execute(mDeliverState);
+            }
+        }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+        }
+
+        @Override
+        public void onConnectionFailed(String address, boolean reconnecting) {
+        }
+
+        @Override
+        public void onConnectionLost(String address, boolean reconnecting) {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        /**
+         * @return What the UI missed, null if it shows the state of the manager
+         */
+        String check() {
+            if (mStatePending.get()) {
+                return "the state change is still pending";
+            }
+            int state = mManager.getState();
+            int devices = mManager.getConnectedDeviceCount();
+            if (mDeliveredState != state || mDeliveredDevices != devices) {
+                return "the UI shows state " + mDeliveredState + " with " + mDeliveredDevices
+                        + " devices, the manager is in state " + state + " with " + devices;
+            }
+            return null;
+        }
+
+        void shutdown() {
+            mMainThread.shutdownNow();
+        }
+    }
+}
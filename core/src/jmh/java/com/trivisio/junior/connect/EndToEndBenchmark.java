@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end latency of the send path over a loopback {@link TcpTransport}.
+ * <p>
+ * A synthetic workload is replayed through the same steps the fragment and the
+ * service take for every edit: the ticker layout, the unchanged frame check, the
+ * encoder, the mailbox, the rate controller and the {@link FrameSender}. A
+ * loopback receiver stands in for the Junior. Every frame is stamped with the
+ * time of the keystroke that produced it, and the receiver reports the time
+ * until its last byte arrived, together with the sustained frame rate.
+ * <p>
+ * Run with {@code ./gradlew :core:endToEndBenchmark}, optionally with
+ * {@code --args="<seconds per workload> <link bytes per second>"}; a link rate
+ * of 0 leaves the loopback unthrottled, an RFCOMM link does about 10000. A
+ * transcript file and a playback speed given as the third and fourth argument
+ * add a workload replaying it through a {@link ReplayTextSource}.
+ */
+public class EndToEndBenchmark {
+
+    // Offers remembered to find the keystroke time of a written frame
+    private static final int OFFER_HISTORY = 64;
+
+    private enum Workload {
+        // A fast typist, 50-200 ms between keystrokes
+        TYPING,
+        // A recognizer appending a word every 200-400 ms and revising the last
+        // one in between
+        SPEECH,
+        // A paste or a replayed transcript, a keystroke every millisecond
+        FLOOD,
+        // A transcript file played through the TranscriptAssembler
+        REPLAY
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        long linkBytesPerSecond = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        File transcript = args.length > 2 ? new File(args[2]) : null;
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        System.out.println(String.format(Locale.US,
+                "%-7s %9s %8s %8s %8s %9s %9s %9s %9s",
+                "", "edits", "offered", "written", "fps", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (Workload workload : Workload.values()) {
+            if (workload == Workload.REPLAY && transcript == null) {
+                continue;
+            }
+            TextSource source = workload == Workload.REPLAY
+                    ? ReplayTextSource.open(transcript, speed) : null;
+            run(workload, source, TimeUnit.SECONDS.toNanos(seconds), linkBytesPerSecond);
+        }
+    }
+
+    private static void run(Workload workload, TextSource source, long durationNanos,
+                            long linkBytesPerSecond) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Receiver receiver = new Receiver(server, linkBytesPerSecond);
+            receiver.start();
+
+            TcpTransport transport = new TcpTransport(
+                    server.getInetAddress().getHostAddress(), server.getLocalPort());
+            transport.connect();
+            FrameMailbox mailbox = new FrameMailbox();
+            OfferLog offers = new OfferLog();
+            StampingOutputStream out = new StampingOutputStream(
+                    transport.getOutputStream(), offers, receiver.mPending);
+            FrameSender sender = new FrameSender(mailbox, new SendRateController(), out,
+                    new FrameSender.Listener() {
+                        @Override
+                        public void onFrameWritten(byte[] frame, boolean probe, long latencyNanos) {
+                        }
+
+                        @Override
+                        public void onFrameFailed(byte[] frame, boolean probe, IOException e) {
+                            e.printStackTrace();
+                        }
+                    });
+            sender.start();
+
+            Driver driver = new Driver(workload, mailbox, offers);
+            long start = System.nanoTime();
+            if (source != null) {
+                driver.replay(source, start + durationNanos);
+            } else {
+                driver.run(start + durationNanos);
+            }
+            long end = System.nanoTime();
+
+            // Let the last frame reach the receiver
+            Thread.sleep(500);
+            sender.cancel();
+            transport.close();
+            receiver.join();
+
+            long[] latencies = receiver.getLatencies();
+            double seconds = (end - start) / 1e9;
+            System.out.println(String.format(Locale.US,
+                    "%-7s %9d %8d %8d %8.1f %9.1f %9.1f %9.1f %9.1f",
+                    workload.name().toLowerCase(Locale.US), driver.mEdits, driver.mOffered,
+                    mailbox.getSentCount(), latencies.length / seconds,
+                    percentileMs(latencies, 0.5), percentileMs(latencies, 0.95),
+                    percentileMs(latencies, 0.99), percentileMs(latencies, 1)));
+        }
+    }
+
+    private static double percentileMs(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Replays the edits of a workload, doing what onTextSend() does for every one
+     */
+    private static class Driver {
+        private final Workload mWorkload;
+        private final FrameMailbox mMailbox;
+        private final OfferLog mOffers;
+        private final TickerLayout mLayout = new TickerLayout();
+        private final TickerEncoder mEncoder = new TickerEncoder();
+        private final Random mRandom = new Random(42);
+        private final String mText = Transcripts.generate(1 << 20, true, 42);
+        private int mPosition;
+        private long mEdits;
+        private long mOffered;
+
+        Driver(Workload workload, FrameMailbox mailbox, OfferLog offers) {
+            mWorkload = workload;
+            mMailbox = mailbox;
+            mOffers = offers;
+        }
+
+        void run(long deadline) {
+            long next = System.nanoTime();
+            while (next < deadline && mPosition < mText.length()) {
+                LockSupport.parkNanos(next - System.nanoTime());
+                long keystroke = System.nanoTime();
+                switch (mWorkload) {
+                    case TYPING:
+                        append(1);
+                        next += TimeUnit.MILLISECONDS.toNanos(50 + mRandom.nextInt(150));
+                        break;
+                    case SPEECH:
+                        if (mRandom.nextBoolean()) {
+                            // Revise the last word of the hypothesis
+                            int length = mLayout.length();
+                            int wordStart = mText.lastIndexOf(' ', mPosition - 1) + 1;
+                            mLayout.replace(length - (mPosition - wordStart), length,
+                                    mText, wordStart, mPosition);
+                        } else {
+                            int wordEnd = mText.indexOf(' ', mPosition + 1);
+                            append((wordEnd < 0 ? mText.length() : wordEnd) - mPosition);
+                        }
+                        next += TimeUnit.MILLISECONDS.toNanos(100 + mRandom.nextInt(100));
+                        break;
+                    case FLOOD:
+                        append(1);
+                        next += TimeUnit.MILLISECONDS.toNanos(1);
+                        break;
+                }
+                send(keystroke);
+            }
+        }
+
+        /**
+         * Play the source until it ends or the deadline, the results are
+         * applied and sent on the thread of the source
+         */
+        void replay(TextSource source, long deadline) throws InterruptedException {
+            TranscriptAssembler assembler = new TranscriptAssembler();
+            assembler.reset(mLayout);
+            CountDownLatch ended = new CountDownLatch(1);
+            source.start(new TextSource.Listener() {
+                @Override
+                public void onPartialResult(CharSequence text) {
+                    long keystroke = System.nanoTime();
+                    assembler.offerPartial(text);
+                    assembler.apply(mLayout);
+                    send(keystroke);
+                }
+
+                @Override
+                public void onFinalResult(CharSequence text) {
+                    long keystroke = System.nanoTime();
+                    assembler.offerFinal(text);
+                    assembler.apply(mLayout);
+                    send(keystroke);
+                }
+
+                @Override
+                public void onEnd() {
+                    ended.countDown();
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    e.printStackTrace();
+                    ended.countDown();
+                }
+            });
+            ended.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            source.stop();
+        }
+
+        private void append(int count) {
+            int length = mLayout.length();
+            mLayout.replace(length, length, mText, mPosition, mPosition + count);
+            mPosition += count;
+        }
+
+        private void send(long keystroke) {
+            mEdits++;
+            byte[] bytes = mEncoder.encodeIfChanged(mLayout);
+            if (bytes == null) {
+                return;
+            }
+            mOffers.add(bytes, keystroke);
+            mMailbox.offerTicker(bytes);
+            mOffered++;
+        }
+    }
+
+    /**
+     * Keystroke times of the latest offered frames, looked up by identity
+     */
+    private static class OfferLog {
+        private final byte[][] mFrames = new byte[OFFER_HISTORY][];
+        private final long[] mTimes = new long[OFFER_HISTORY];
+        private int mNext;
+
+        synchronized void add(byte[] frame, long keystroke) {
+            mFrames[mNext] = frame;
+            mTimes[mNext] = keystroke;
+            mNext = (mNext + 1) % OFFER_HISTORY;
+        }
+
+        /**
+         * @return The keystroke time of the frame, -1 if it's too old
+         */
+        synchronized long find(byte[] frame) {
+            for (int i = 0; i < OFFER_HISTORY; i++) {
+                if (mFrames[i] == frame) {
+                    return mTimes[i];
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Tells the receiver at which stream offset every frame ends, before the
+     * frame is written
+     */
+    private static class StampingOutputStream extends FilterOutputStream {
+        private final OfferLog mOffers;
+        private final ConcurrentLinkedQueue<long[]> mPending;
+        private long mOffset;
+
+        StampingOutputStream(OutputStream out, OfferLog offers, ConcurrentLinkedQueue<long[]> pending) {
+            super(out);
+            mOffers = offers;
+            mPending = pending;
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            mOffset += b.length;
+            mPending.add(new long[]{mOffset, mOffers.find(b)});
+            out.write(b, 0, b.length);
+        }
+    }
+
+    /**
+     * Stands in for the Junior: drains the link, optionally at the rate of an
+     * RFCOMM link, and times the arrival of every frame
+     */
+    private static class Receiver extends Thread {
+        private final ServerSocket mServer;
+        private final long mBytesPerSecond;
+        private final ConcurrentLinkedQueue<long[]> mPending = new ConcurrentLinkedQueue<>();
+        private long[] mLatencies = new long[1024];
+        private int mCount;
+
+        Receiver(ServerSocket server, long bytesPerSecond) {
+            super("Receiver");
+            mServer = server;
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void run() {
+            // Small reads when throttled, so a frame trickles in like over RFCOMM
+            byte[] buffer = new byte[mBytesPerSecond > 0 ? 64 : 8192];
+            long received = 0;
+            long start = 0;
+            try (Socket socket = mServer.accept()) {
+                InputStream in = socket.getInputStream();
+                int bytes;
+                while ((bytes = in.read(buffer)) >= 0) {
+                    long now = System.nanoTime();
+                    if (received == 0) {
+                        start = now;
+                    }
+                    received += bytes;
+                    long[] frame;
+                    while ((frame = mPending.peek()) != null && frame[0] <= received) {
+                        mPending.poll();
+                        if (frame[1] >= 0) {
+                            add(now - frame[1]);
+                        }
+                    }
+                    if (mBytesPerSecond > 0) {
+                        long due = start + received * 1_000_000_000L / mBytesPerSecond;
+                        LockSupport.parkNanos(due - System.nanoTime());
+                    }
+                }
+            } catch (IOException e) {
+                // The sender closed the link
+            }
+        }
+
+        private void add(long latency) {
+            if (mCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+            }
+            mLatencies[mCount++] = latency;
+        }
+
+        /**
+         * @return The sorted latencies, once the thread has finished
+         */
+        long[] getLatencies() {
+            long[] latencies = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(latencies);
+            return latencies;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the per-keystroke path: feeding an edit into the ticker layout,
+ * rendering the frame and encoding it. Run with {@code ./gradlew :core:jmh}; the
+ * gc profiler reports the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TickerLayoutBenchmark {
+
+    /**
+     * Length of the transcript already typed before the measured edits
+     */
+    @Param({"200", "100000"})
+    public int transcriptLength;
+
+    @Param({"false", "true"})
+    public boolean mixedScript;
+
+    private String mBurst;
+    private TickerLayout mLayout;
+    private final TickerEncoder mEncoder = new TickerEncoder();
+    private final char[] mFrameChars = new char[TickerLayout.MAX_FRAME_LENGTH];
+    private String mTranscript;
+    private int mBurstIndex;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mTranscript = Transcripts.generate(transcriptLength, mixedScript, 42);
+        mBurst = " " + Transcripts.generate(4096, mixedScript, 7);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        mLayout = new TickerLayout();
+        mLayout.setText(mTranscript);
+        mBurstIndex = 0;
+    }
+
+    /**
+     * One typed symbol at the end of the text, as the IME or the recognizer
+     * delivers it, followed by the frame the streamer would send
+     */
+    @Benchmark
+    public byte[] typeSymbol() {
+        if (mBurstIndex == mBurst.length()) {
+            // Start the burst over, dropping what it typed
+            int end = mLayout.length();
+            mLayout.replace(end - mBurstIndex, end, "", 0, 0);
+            mBurstIndex = 0;
+        }
+        int length = mLayout.length();
+        mLayout.replace(length, length, mBurst, mBurstIndex, mBurstIndex + 1);
+        mBurstIndex++;
+        return mEncoder.encodeIfChanged(mLayout);
+    }
+
+    /**
+     * Backspace and retype of the last symbol, the typical correction
+     */
+    @Benchmark
+    public byte[] correctSymbol() {
+        int length = mLayout.length();
+        mLayout.replace(length - 1, length, "", 0, 0);
+        mEncoder.encodeIfChanged(mLayout);
+        mLayout.replace(length - 1, length - 1, mTranscript,
+                mTranscript.length() - 1, mTranscript.length());
+        return mEncoder.encodeIfChanged(mLayout);
+    }
+
+    /**
+     * Layout of the whole transcript from scratch, e.g. a recognizer replacing
+     * its hypothesis
+     */
+    @Benchmark
+    public int relayout() {
+        mLayout.setText(mTranscript);
+        return mLayout.getFrame(mFrameChars);
+    }
+
+    /**
+     * An edit of the same symbol at the start of the text, e.g. a recognizer
+     * revising an early word: the bytes on the wire don't change
+     */
+    @Benchmark
+    public byte[] editUnchangedFrame() {
+        mLayout.replace(0, 1, mTranscript, 0, 1);
+        return mEncoder.encodeIfChanged(mLayout);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Property checks of the {@link TickerLayout} on random edit sequences.
+ * <p>
+ * Ordinary text, words of up to 20 symbols separated by whitespace, must render
+ * exactly like the original formatText() of the fragment. Any text, including
+ * over-long tokens, unspaced CJK, surrogate pairs and huge whitespace runs, must
+ * render within the scan bound into a frame which fits the screen and holds a
+ * suffix of the text. Every case runs under a deadline, so a layout which doesn't
+ * terminate fails instead of hanging.
+ * <p>
+ * Run with {@code ./gradlew :core:tickerLayoutFuzz}, optionally with
+ * {@code --args="<cases> <seed>"}. Exits with status 1 on the first failure.
+ */
+public class TickerLayoutFuzz {
+
+    private static final int LINE = TickerLayout.LINE_LENGTH;
+    private static final int LINES = TickerLayout.NUMBER_OF_LINES;
+
+    // Non-space symbols a render may look at: a full screen plus the scan for
+    // the start of the token which didn't fit
+    private static final int NON_SPACE_BOUND = 2 * LINES * LINE + 1;
+
+    private static final long CASE_DEADLINE_MS = 10_000;
+
+    private static final String WHITESPACE = " \t\n\r\f\u000B";
+    private static final String[] FRAGMENTS = {
+            "https://example.com/a/very/long/path?with=query&and=more",
+            "Donaudampfschifffahrtsgesellschaftskapitän",
+            "日本語のテキストを表示します。", "中文字幕（测试）", "「かぎかっこ」",
+            "\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00", "\uD840\uDC00\uD840\uDC01",
+            "한국어", "word", "a", "x-y-z", "Java开发", "100%", "(ok)"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "TickerLayoutFuzz");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            run(executor, "adversarial", () -> checkAdversarial());
+            run(executor, "long tokens", () -> checkLongTokens());
+            for (int i = 0; i < cases; i++) {
+                long caseSeed = seed + i;
+                run(executor, "ordinary #" + caseSeed, () -> checkOrdinary(new Random(caseSeed)));
+                run(executor, "arbitrary #" + caseSeed, () -> checkArbitrary(new Random(caseSeed)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("ok, " + cases + " cases of each kind, seed " + seed);
+    }
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private static void run(ExecutorService executor, String name, Check check) throws Exception {
+        Future<?> result = executor.submit(() -> {
+            check.run();
+            return null;
+        });
+        try {
+            result.get(CASE_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.out.println(name + ": no frame within " + CASE_DEADLINE_MS + " ms");
+            System.exit(1);
+        } catch (ExecutionException e) {
+            System.out.println(name + ": " + e.getCause().getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Random edits of words of up to 20 Latin letters, compared to formatText()
+     */
+    private static void checkOrdinary(Random random) {
+        TickerLayout layout = new TickerLayout();
+        StringBuilder mirror = new StringBuilder();
+        for (int step = 0; step < 300; step++) {
+            int start;
+            int end;
+            String replacement;
+            int op = random.nextInt(10);
+            if (op < 6) {
+                // Typing at the end
+                start = end = mirror.length();
+                replacement = symbol(random);
+            } else if (op < 8) {
+                // Backspace at the end
+                end = mirror.length();
+                start = Math.max(0, end - 1);
+                replacement = "";
+            } else {
+                // Replace a range somewhere
+                start = mirror.length() == 0 ? 0 : random.nextInt(mirror.length());
+                end = Math.min(mirror.length(), start + random.nextInt(4));
+                StringBuilder sb = new StringBuilder();
+                for (int i = random.nextInt(6); i > 0; i--) {
+                    sb.append(symbol(random));
+                }
+                replacement = sb.toString();
+            }
+            String candidate = new StringBuilder(mirror).replace(start, end, replacement).toString();
+            if (hasLongWord(candidate)) {
+                continue;
+            }
+            mirror.replace(start, end, replacement);
+            layout.replace(start, end, replacement, 0, replacement.length());
+            if (random.nextInt(3) == 0) {
+                String expected = referenceFrame(mirror.toString());
+                String frame = layout.getFrame();
+                check(expected.equals(frame), "frame differs from formatText() for ["
+                        + mirror + "]\n" + expected + "\n---\n" + frame);
+            }
+        }
+    }
+
+    /**
+     * Random edits of anything, checked against the invariants of a frame
+     */
+    private static void checkArbitrary(Random random) {
+        TickerLayout layout = new TickerLayout();
+        StringBuilder mirror = new StringBuilder();
+        for (int step = 0; step < 100; step++) {
+            int start = mirror.length() == 0 || random.nextInt(4) > 0
+                    ? mirror.length() : random.nextInt(mirror.length());
+            int end = Math.min(mirror.length(), start + random.nextInt(3));
+            // Keep the surrogate pairs of the mirror whole
+            while (start > 0 && start < mirror.length() && Character.isLowSurrogate(mirror.charAt(start))) {
+                start--;
+            }
+            while (end < mirror.length() && Character.isLowSurrogate(mirror.charAt(end))) {
+                end++;
+            }
+            String replacement = arbitrary(random);
+            mirror.replace(start, end, replacement);
+            layout.replace(start, end, replacement, 0, replacement.length());
+            if (random.nextInt(4) == 0) {
+                checkFrame(mirror, layout);
+            }
+        }
+        checkFrame(mirror, layout);
+    }
+
+    /**
+     * Inputs which hang or blank the original formatText()
+     */
+    private static void checkAdversarial() {
+        char[] token = new char[1 << 20];
+        Arrays.fill(token, 'x');
+        char[] spaces = new char[1 << 20];
+        Arrays.fill(spaces, ' ');
+        StringBuilder cjk = new StringBuilder();
+        while (cjk.length() < 1 << 20) {
+            cjk.append("日本語のテキスト。");
+        }
+        String[] texts = {
+                new String(token),
+                "see " + new String(token),
+                new String(token) + " end",
+                "words before " + new String(spaces),
+                "words before" + new String(spaces) + "and after",
+                cjk.toString(),
+                "Donaudampfschifffahrtsgesellschaftskapitän",
+                "https://example.com/a/very/long/path?with=query&and=more"
+        };
+        for (String text : texts) {
+            TickerLayout layout = new TickerLayout();
+            layout.setText(text);
+            long start = System.nanoTime();
+            String frame = layout.getFrame();
+            long nanos = System.nanoTime() - start;
+            checkFrame(new StringBuilder(text), layout);
+            // Only a window of nothing but whitespace leaves the screen empty
+            String window = text.substring(Math.max(0, text.length() - TickerLayout.SCAN_LIMIT));
+            check(!frame.isEmpty() || window.trim().isEmpty(), "empty frame for [" + abbreviate(text) + "]");
+            System.out.println(String.format("%-60s %6d symbols looked at, %6.3f ms",
+                    abbreviate(text), layout.getScanLength(), nanos / 1e6));
+        }
+    }
+
+    /**
+     * Tokens with no break opportunity, longer than a line and than the screen
+     */
+    private static void checkLongTokens() {
+        for (int length = LINE + 1; length <= 3 * LINES * LINE; length++) {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) ('a' + i % 26);
+            }
+            String token = new String(chars);
+            for (String prefix : new String[]{"", "some words before "}) {
+                String text = prefix + token;
+                TickerLayout layout = new TickerLayout();
+                layout.setText(text);
+                checkFrame(text, layout);
+                String frame = layout.getFrame();
+                String context = length + " symbols token -> [" + frame + "]";
+                if (length >= LINES * LINE) {
+                    // Full lines cut from the end of the token fill the screen
+                    check(frame.equals(token.substring(length - LINES * LINE)),
+                            "screen not filled with the end of the " + context);
+                } else {
+                    // Full lines cut from the start of the token, the rest at the end
+                    check(frame.endsWith(token) && (frame.length() == length
+                                    || frame.charAt(frame.length() - length - 1) == '\n'),
+                            "token not broken from its start, " + context);
+                }
+            }
+        }
+    }
+
+    private static void checkFrame(CharSequence text, TickerLayout layout) {
+        String frame = layout.getFrame();
+        int scanLength = layout.getScanLength();
+        String context = "[" + abbreviate(text) + "] -> [" + frame + "]";
+
+        check(frame.length() <= TickerLayout.MAX_FRAME_LENGTH, "frame too long " + context);
+        check(scanLength <= TickerLayout.SCAN_LIMIT, "scanned " + scanLength + " symbols " + context);
+        int nonSpace = 0;
+        for (int i = text.length() - scanLength; i < text.length(); i++) {
+            if (WHITESPACE.indexOf(text.charAt(i)) < 0) {
+                nonSpace++;
+            }
+        }
+        check(nonSpace <= NON_SPACE_BOUND, "looked at " + nonSpace + " non-space symbols " + context);
+
+        // The screen rows, counting the full lines wrapped by the device
+        int rows = 0;
+        for (String line : frame.split("\n", -1)) {
+            check(!line.isEmpty() || frame.isEmpty(), "empty line " + context);
+            rows += Math.max(1, (line.length() + LINE - 1) / LINE);
+        }
+        check(frame.isEmpty() || rows <= LINES, rows + " rows " + context);
+        check(frame.isEmpty() || frame.charAt(frame.length() - 1) != ' ', "trailing space " + context);
+        for (int i = 0; i < frame.length(); i++) {
+            char c = frame.charAt(i);
+            boolean paired = Character.isHighSurrogate(c)
+                    ? i + 1 < frame.length() && Character.isLowSurrogate(frame.charAt(i + 1))
+                    : !Character.isLowSurrogate(c) || (i > 0 && Character.isHighSurrogate(frame.charAt(i - 1)));
+            check(paired, "split surrogate pair " + context);
+        }
+
+        // The frame holds the end of the text, with the whitespace collapsed
+        String content = frame.replaceAll("\\s+", "");
+        String tail = text.toString().replaceAll("\\s+", "");
+        check(tail.endsWith(content), "frame isn't a suffix of the text " + context);
+    }
+
+    private static String symbol(Random random) {
+        return random.nextInt(5) == 0
+                ? String.valueOf(WHITESPACE.charAt(random.nextInt(3)))
+                : String.valueOf((char) ('a' + random.nextInt(26)));
+    }
+
+    private static String arbitrary(Random random) {
+        switch (random.nextInt(7)) {
+            case 0:
+                return FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+            case 1:
+                return String.valueOf(WHITESPACE.charAt(random.nextInt(WHITESPACE.length())));
+            case 2: {
+                char[] run = new char[random.nextInt(64)];
+                Arrays.fill(run, random.nextBoolean() ? 'w' : ' ');
+                return new String(run);
+            }
+            case 3:
+                return String.valueOf((char) (0x4E00 + random.nextInt(0x5000)));
+            case 4: {
+                // A token longer than the screen, like a pasted link
+                char[] token = new char[LINE + random.nextInt(3 * LINES * LINE)];
+                for (int i = 0; i < token.length; i++) {
+                    token[i] = (char) ('a' + random.nextInt(26));
+                }
+                return new String(token);
+            }
+            default:
+                return symbol(random);
+        }
+    }
+
+    private static boolean hasLongWord(String text) {
+        for (String word : text.split("\\s+")) {
+            if (word.length() > LINE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The layout of the original BluetoothConnectFragment.formatText(), applied
+     * to the text with the whitespace runs collapsed like before sending
+     */
+    static String referenceFrame(String text) {
+        String value = text.replaceAll("\\s+", " ").trim();
+        if (value.isEmpty()) {
+            return "";
+        }
+        String[] words = value.split("\\s+");
+        List<String> lines = new ArrayList<>();
+        int wordIndex = words.length - 1;
+        while (lines.size() < LINES && wordIndex >= 0) {
+            StringBuilder line = new StringBuilder();
+            while (wordIndex >= 0 && line.length() + words[wordIndex].length() <= LINE) {
+                line.insert(0, words[wordIndex] + " ");
+                wordIndex--;
+            }
+            String lineText = line.toString().trim();
+            if (lineText.length() > 0) {
+                lines.add(lineText);
+            }
+        }
+        Collections.reverse(lines);
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < lines.size(); j++) {
+            String line = lines.get(j);
+            sb.append(line);
+            if (j < lines.size() - 1 && line.length() < LINE) {
+                sb.append('\n');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static String abbreviate(CharSequence text) {
+        String s = text.toString().replaceAll("\\s+", " ");
+        return s.length() <= 48 ? s : s.substring(0, 20) + "…(" + text.length() + ")…"
+                + s.substring(s.length() - 16);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    private static void fail(String message) {
+        throw new AssertionError(message);
+    }
+}
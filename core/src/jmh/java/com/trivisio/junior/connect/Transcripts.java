@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.util.Random;
+
+/**
+ * Synthetic transcripts for the benchmarks, generated from a fixed seed.
+ */
+final class Transcripts {
+
+    private static final String[] LATIN = {
+            "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "speech",
+            "recognition", "ticker", "display", "a", "of", "connected", "Junior"
+    };
+
+    private static final String[] MIXED = {
+            "привет", "мир", "straße", "größe", "日本語", "テキスト", "中文", "字幕",
+            "émoji", "😀", "naïve", "café", "한국어", "ελληνικά", "word"
+    };
+
+    private Transcripts() {
+    }
+
+    /**
+     * @param length Minimum number of chars
+     * @param mixed  Mix Cyrillic, CJK, accented Latin and emoji into the text
+     * @return Words separated by single spaces
+     */
+    static String generate(int length, boolean mixed, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length + 32);
+        while (sb.length() < length) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            String[] words = mixed && random.nextInt(3) == 0 ? MIXED : LATIN;
+            sb.append(words[random.nextInt(words.length)]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rolling connection phase statistics of one device: the durations of the last
+ * successful attempts per phase and the failure counts by the phase that failed.
+ */
+public class ConnectStats {
+
+    // Number of the latest attempts the percentiles are computed over
+    private static final int WINDOW = 64;
+
+    // Row PHASE_COUNT holds the total connect time
+    private final long[][] mSamples = new long[ConnectTimeline.PHASE_COUNT + 1][WINDOW];
+    private final long[] mFailures = new long[ConnectTimeline.PHASE_COUNT];
+    private long mSuccesses;
+
+    /**
+     * Account an attempt which reached the first write.
+     */
+    public synchronized void recordSuccess(ConnectTimeline timeline) {
+        int slot = (int) (mSuccesses % WINDOW);
+        for (int phase = 0; phase < ConnectTimeline.PHASE_COUNT; phase++) {
+            mSamples[phase][slot] = timeline.getPhaseNanos(phase);
+        }
+        mSamples[ConnectTimeline.PHASE_COUNT][slot] = timeline.getTotalNanos();
+        mSuccesses++;
+    }
+
+    /**
+     * Account an attempt which failed in the phase following the completed ones.
+     */
+    public synchronized void recordFailure(ConnectTimeline timeline) {
+        int phase = Math.min(timeline.getCompletedPhases(), ConnectTimeline.PHASE_COUNT - 1);
+        mFailures[phase]++;
+    }
+
+    public synchronized long getSuccessCount() {
+        return mSuccesses;
+    }
+
+    /**
+     * @param phase One of the ConnectTimeline PHASE_ constants
+     * @return The number of attempts which failed in the phase
+     */
+    public synchronized long getFailureCount(int phase) {
+        return mFailures[phase];
+    }
+
+    /**
+     * @param phase      One of the ConnectTimeline PHASE_ constants, or
+     *                   PHASE_COUNT for the total connect time
+     * @param percentile The percentile, 0..1; 1 gives the maximum
+     * @return The duration in nanoseconds over the latest attempts, -1 if none
+     */
+    public synchronized long getPercentileNanos(int phase, double percentile) {
+        int count = (int) Math.min(mSuccesses, WINDOW);
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(mSamples[phase], count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Append a human-readable summary, one line per phase.
+     */
+    public synchronized void dump(StringBuilder sb) {
+        sb.append(String.format(Locale.US, "  %d connected", mSuccesses));
+        for (int phase = 0; phase <= ConnectTimeline.PHASE_COUNT; phase++) {
+            String name = phase == ConnectTimeline.PHASE_COUNT
+                    ? "total" : ConnectTimeline.getPhaseName(phase);
+            sb.append(String.format(Locale.US, "\n  %-16s p50 %6d ms  p95 %6d ms  max %6d ms",
+                    name, toMs(getPercentileNanos(phase, 0.5)),
+                    toMs(getPercentileNanos(phase, 0.95)), toMs(getPercentileNanos(phase, 1))));
+            if (phase < ConnectTimeline.PHASE_COUNT) {
+                sb.append(String.format(Locale.US, "  failed %d", mFailures[phase]));
+            }
+        }
+    }
+
+    private static long toMs(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1_000_000L;
+    }
+}
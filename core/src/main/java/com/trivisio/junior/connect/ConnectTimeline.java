@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Monotonic timestamps of the phases of one connection attempt, from the connect
+ * request to the first frame written to the device.
+ */
+public class ConnectTimeline {
+
+    // Phases of a connection attempt, in the order they happen
+    public static final int PHASE_SOCKET_CREATE = 0;     // SDP or channel socket created
+    public static final int PHASE_CANCEL_DISCOVERY = 1;  // ConnectThread started, discovery cancelled
+    public static final int PHASE_SOCKET_CONNECT = 2;    // BluetoothSocket.connect() returned
+    public static final int PHASE_STREAMS = 3;           // ConnectedThread got the socket streams
+    public static final int PHASE_FIRST_WRITE = 4;       // first frame written
+    public static final int PHASE_COUNT = 5;
+
+    private static final String[] PHASE_NAMES = {
+            "socket create", "cancel discovery", "socket connect", "streams", "first write"
+    };
+
+    private final long mRequestedAt;
+    private final long[] mPhaseEnds = new long[PHASE_COUNT];
+    private int mCompletedPhases;
+
+    /**
+     * @param requestedAt {@link System#nanoTime()} of the connect request
+     */
+    public ConnectTimeline(long requestedAt) {
+        mRequestedAt = requestedAt;
+    }
+
+    /**
+     * Mark the end of the next phase. Phases marked out of order are ignored.
+     *
+     * @param phase One of the PHASE_ constants
+     * @param now   Current {@link System#nanoTime()}
+     */
+    public synchronized void mark(int phase, long now) {
+        if (phase != mCompletedPhases) {
+            return;
+        }
+        mPhaseEnds[phase] = now;
+        mCompletedPhases++;
+    }
+
+    /**
+     * @return The number of phases completed so far, the failed phase if the
+     * attempt failed
+     */
+    public synchronized int getCompletedPhases() {
+        return mCompletedPhases;
+    }
+
+    /**
+     * @param phase One of the PHASE_ constants
+     * @return The duration of the phase in nanoseconds, -1 if not completed
+     */
+    public synchronized long getPhaseNanos(int phase) {
+        if (phase >= mCompletedPhases) {
+            return -1;
+        }
+        long start = phase == 0 ? mRequestedAt : mPhaseEnds[phase - 1];
+        return mPhaseEnds[phase] - start;
+    }
+
+    /**
+     * @return The time from the request to the end of the last completed phase
+     */
+    public synchronized long getTotalNanos() {
+        return mCompletedPhases == 0 ? 0 : mPhaseEnds[mCompletedPhases - 1] - mRequestedAt;
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Receives the debug output of a {@link ConnectionManager}, with the levels of
+ * android.util.Log. The app sends it to logcat.
+ */
+public interface ConnectionLog {
+
+    /**
+     * Drops the output
+     */
+    ConnectionLog NONE = new ConnectionLog() {
+        @Override
+        public void d(String msg) {
+        }
+
+        @Override
+        public void i(String msg) {
+        }
+
+        @Override
+        public void w(String msg) {
+        }
+
+        @Override
+        public void e(String msg, Throwable tr) {
+        }
+    };
+
+    void d(String msg);
+
+    void i(String msg);
+
+    void w(String msg);
+
+    void e(String msg, Throwable tr);
+}
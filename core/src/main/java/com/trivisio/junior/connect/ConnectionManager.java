@@ -0,0 +1,1268 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets up and manages the connections to the Juniors over the links of a
+ * {@link TransportFactory}. It has a thread for connecting with a device, and
+ * threads for performing data transmissions when connected.
+ * <p>
+ * Normally the manager drives a single device. In the fan-out mode more
+ * devices are added with {@link #addDevice(String)}; every device has its own
+ * connection threads, state and outbound mailbox, so a slow or dead device
+ * doesn't stall the others. Lost links are brought back by the reconnects of
+ * the {@link ReconnectPolicy}, and stalled ones are found by the link
+ * supervision.
+ */
+public class ConnectionManager {
+    /**
+     * Text shown by the Junior when no device is sending to it
+     */
+    public static final String IDLE_MESSAGE = "Waiting for message";
+
+    // How long stop() waits for the pending control frames to be written
+    private static final long CONTROL_FLUSH_TIMEOUT_MS = 500;
+
+    // Link supervision defaults, see setLinkSupervision() for the detection time
+    public static final long DEFAULT_WRITE_TIMEOUT_MS = 3000;
+    public static final long DEFAULT_PROBE_INTERVAL_MS = 2000;
+    private static final long SUPERVISION_TICK_MS = 250;
+
+    /**
+     * Receives the connection events, on the connection threads. Some are
+     * called under the manager monitor, so the listener mustn't block or call
+     * back into the manager; it hands the events over to its own thread.
+     */
+    public interface Listener {
+
+        /**
+         * A device moved to a new state.
+         *
+         * @param address The device address
+         * @param state   One of the ConnectionState STATE_ constants
+         */
+        void onStateChanged(String address, int state);
+
+        /**
+         * A device got connected.
+         *
+         * @param address The device address
+         * @param name    The device name, null if unknown
+         */
+        void onDeviceConnected(String address, String name);
+
+        /**
+         * A connection attempt failed and won't be retried.
+         *
+         * @param address      The device address
+         * @param reconnecting true if it was an automatic reconnect attempt
+         */
+        void onConnectionFailed(String address, boolean reconnecting);
+
+        /**
+         * The connection to a device was lost.
+         *
+         * @param address      The device address
+         * @param reconnecting true if the manager tries to bring it back
+         */
+        void onConnectionLost(String address, boolean reconnecting);
+
+        /**
+         * The last device was lost after the attempts to bring it back.
+         */
+        void onDisconnected();
+    }
+
+    // Member fields
+    private final TransportFactory mFactory;
+    private final Listener mListener;
+    private final ConnectionLog mLog;
+
+    /**
+     * Device connections by address, guarded by the manager monitor
+     */
+    private final Map<String, DeviceConnection> mConnections = new LinkedHashMap<>();
+
+    /**
+     * Copy of the connections for the send path, replaced as a whole on every change
+     */
+    private volatile DeviceConnection[] mConnectionArray = new DeviceConnection[0];
+
+    /**
+     * Subscribers for the inbound data, replaced as a whole on every change
+     */
+    private volatile InboundListener[] mInboundListeners = new InboundListener[0];
+
+    // Reconnect supervisor
+    private ReconnectPolicy mReconnectPolicy = ReconnectPolicy.DEFAULT;
+    private final Random mRandom = new Random();
+    private ScheduledExecutorService mScheduler;
+    private volatile long mLastRecoveryNanos = -1;
+
+    // Link supervision, guarded by the manager monitor
+    private long mWriteTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WRITE_TIMEOUT_MS);
+    private long mProbeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PROBE_INTERVAL_MS);
+    private ScheduledFuture<?> mSupervision;
+
+    /**
+     * Connections still racing in connectFirst(), empty when no race is on.
+     * Guarded by the manager monitor
+     */
+    private final Set<DeviceConnection> mRace = new HashSet<>();
+    private int mRaceId;
+
+    /**
+     * Last ticker frame, re-sent as soon as a lost connection is back and
+     * sent to every device joining the fan-out
+     */
+    private volatile byte[] mLastFrame;
+
+    /**
+     * Frame the idle links are probed with: the last frame written of any kind,
+     * which the device shows unchanged, or the idle message before the first one
+     */
+    private volatile byte[] mProbeFrame = IDLE_MESSAGE.getBytes(StandardCharsets.UTF_8);
+
+    // Connect latency, cold (service lookup) and with a cached channel
+    private long mColdConnects;
+    private long mColdConnectNanos;
+    private long mCachedConnects;
+    private long mCachedConnectNanos;
+
+    /**
+     * Connect phase statistics by device address, kept when the device is removed.
+     * Guarded by the manager monitor
+     */
+    private final Map<String, ConnectStats> mConnectStats = new LinkedHashMap<>();
+
+    /**
+     * Counters and write latency of the send path, across all the devices
+     */
+    private final SendMetrics mSendMetrics = new SendMetrics();
+
+    /**
+     * @param factory  Maker of the links to the devices
+     * @param listener Receiver of the connection events
+     * @param log      Receiver of the debug output
+     */
+    public ConnectionManager(TransportFactory factory, Listener listener, ConnectionLog log) {
+        mFactory = factory;
+        mListener = listener;
+        mLog = log;
+    }
+
+    /**
+     * Return the current connection state: connected if any device is connected,
+     * connecting if any device is being connected. Never blocks.
+     */
+    public int getState() {
+        // The manager is as connected as its best connection
+        int state = ConnectionState.STATE_NONE;
+        for (DeviceConnection connection : mConnectionArray) {
+            state = Math.max(state, connection.mmState.getState());
+        }
+        return state;
+    }
+
+    /**
+     * Return the number of connected devices.
+     */
+    public int getConnectedDeviceCount() {
+        int count = 0;
+        for (DeviceConnection connection : mConnectionArray) {
+            if (connection.mmState.getState() == ConnectionState.STATE_CONNECTED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Cancel all the connection threads.
+     */
+    public synchronized void start() {
+        mLog.d("start");
+
+        // Cancel any thread attempting to make or currently running a connection
+        removeAllConnections();
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a device. Any other
+     * device connection is dropped.
+     *
+     * @param address The address of the device to connect
+     */
+    public synchronized void connect(String address) {
+        mLog.d("connect to: " + address);
+
+        // Cancel the connections to the other devices
+        DeviceConnection connection = mConnections.get(address);
+        for (DeviceConnection other : new ArrayList<>(mConnections.values())) {
+            if (other != connection) {
+                removeConnection(other);
+            }
+        }
+
+        if (connection == null) {
+            connection = addConnection(address);
+        }
+        mRace.clear();
+        // A connection requested by the user replaces any reconnect in progress
+        connection.mmReconnectAttempt = 0;
+        connection.mmLinkLostAt = 0;
+        openConnection(connection, connection.mmState.begin());
+    }
+
+    /**
+     * Connect to whichever of the devices answers first. The attempts run in
+     * parallel; the first socket to connect wins and the other attempts are
+     * cancelled, closing their sockets. The attempts still running after the
+     * timeout are cancelled too, and each of their devices is reported with
+     * {@link Listener#onConnectionFailed}. Any other device connection is dropped.
+     *
+     * @param addresses The addresses of the candidate devices
+     * @param timeoutMs Time the race may take
+     */
+    public synchronized void connectFirst(List<String> addresses, long timeoutMs) {
+        mLog.d("connect to the first of " + addresses.size() + " devices");
+        removeAllConnections();
+
+        final int race = ++mRaceId;
+        for (String address : addresses) {
+            if (mConnections.containsKey(address)) {
+                continue;
+            }
+            DeviceConnection connection = addConnection(address);
+            mRace.add(connection);
+            openConnection(connection, connection.mmState.begin());
+        }
+        schedule(() -> raceTimedOut(race), timeoutMs);
+    }
+
+    /**
+     * Cancel the attempts of the race which are still running
+     */
+    private void raceTimedOut(int race) {
+        List<String> addresses = new ArrayList<>();
+        synchronized (this) {
+            if (race != mRaceId || mRace.isEmpty()) {
+                return;
+            }
+            mLog.w("no device answered in time, cancelling " + mRace.size() + " attempts");
+            for (DeviceConnection connection : new ArrayList<>(mRace)) {
+                addresses.add(connection.mmAddress);
+                removeConnection(connection);
+            }
+        }
+        for (String address : addresses) {
+            mListener.onConnectionFailed(address, false);
+        }
+    }
+
+    /**
+     * Add a device to the fan-out: connect to it while keeping the connections to
+     * the other devices. Every ticker frame is sent to all the connected devices.
+     *
+     * @param address The address of the device to connect
+     */
+    public synchronized void addDevice(String address) {
+        mLog.d("add device: " + address);
+        DeviceConnection connection = mConnections.get(address);
+        if (connection != null) {
+            // Already connected or being connected
+            return;
+        }
+        connection = addConnection(address);
+        openConnection(connection, connection.mmState.begin());
+    }
+
+    /**
+     * Disconnect a device from the fan-out.
+     *
+     * @param address The address of the device
+     */
+    public synchronized void removeDevice(String address) {
+        DeviceConnection connection = mConnections.get(address);
+        if (connection != null) {
+            removeConnection(connection);
+        }
+    }
+
+    private synchronized DeviceConnection addConnection(String address) {
+        DeviceConnection connection = new DeviceConnection(address);
+        mConnections.put(address, connection);
+        mConnectionArray = mConnections.values().toArray(new DeviceConnection[0]);
+        return connection;
+    }
+
+    private synchronized void removeConnection(DeviceConnection connection) {
+        connection.close();
+        mRace.remove(connection);
+        mConnections.remove(connection.mmAddress);
+        mConnectionArray = mConnections.values().toArray(new DeviceConnection[0]);
+        if (mConnections.isEmpty()) {
+            stopSupervision();
+        }
+    }
+
+    private synchronized void removeAllConnections() {
+        for (DeviceConnection connection : mConnections.values()) {
+            connection.close();
+        }
+        mConnections.clear();
+        mRace.clear();
+        mConnectionArray = new DeviceConnection[0];
+        stopSupervision();
+    }
+
+    /**
+     * Start a new connection attempt to the device of the connection
+     *
+     * @param generation The generation of the attempt, see {@link ConnectionState#begin()}
+     */
+    private synchronized void openConnection(DeviceConnection connection, int generation) {
+        // Cancel any thread attempting to make or currently running a connection
+        connection.cancelThreads();
+
+        // Start the thread to connect with the given device
+        connection.mmTimeline = new ConnectTimeline(System.nanoTime());
+        connection.mmConnectThread = new ConnectThread(connection, generation);
+        connection.mmConnectThread.start();
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a connection
+     *
+     * @param connection The connection the link was made for
+     * @param transport  The Transport on which the connection was made
+     * @param generation The generation of the attempt
+     */
+    private synchronized void connected(DeviceConnection connection, Transport transport, int generation) {
+        mLog.d("connected to " + connection.mmAddress);
+
+        // The device may have been removed or connected again meanwhile
+        if (mConnections.get(connection.mmAddress) != connection
+                || !connection.mmState.isCurrent(generation)) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                mLog.e("close() of a removed device socket failed", e);
+            }
+            return;
+        }
+
+        // The first device of a race to connect wins it
+        if (mRace.remove(connection)) {
+            mLog.i(connection.mmAddress + " answered first, cancelling " + mRace.size() + " attempts");
+            for (DeviceConnection other : new ArrayList<>(mRace)) {
+                removeConnection(other);
+            }
+        }
+
+        // Cancel the threads of the previous connection, if any
+        connection.mmConnectThread = null;
+        connection.cancelThreads();
+
+        // Start the thread to manage the connection and perform transmissions
+        connection.mmConnectedThread = new ConnectedThread(connection, transport, generation);
+        connection.mmConnectedThread.start();
+
+        // Start the thread writing the outgoing frames to the connection
+        connection.mmRateController.reset();
+        connection.mmFrameSender = new FrameSender(connection.mmMailbox, connection.mmRateController,
+                connection.mmConnectedThread.mmOutStream, connection);
+        connection.mmFrameSender.start();
+        connection.mmLastWriteAt = System.nanoTime();
+        startSupervision();
+
+        // Send the name of the connected device back to the UI
+        connection.mmName = mFactory.getDeviceName(connection.mmAddress);
+        mListener.onDeviceConnected(connection.mmAddress, connection.mmName);
+
+        // Publish the new state after the name, the UI title shows both. The
+        // generation can't change meanwhile, all the attempts start under the
+        // manager monitor
+        connection.mmState.connected(generation);
+
+        // Bring the display back to where it was before the link was lost
+        connection.mmReconnectAttempt = 0;
+        byte[] lastFrame = mLastFrame;
+        if (lastFrame != null) {
+            connection.mmMailbox.offerTicker(lastFrame);
+        }
+    }
+
+    /**
+     * Stop all threads. Returns at once: the connected devices are dropped from
+     * the manager right away, but closed on a background thread once their
+     * pending control frames (e.g. the idle frame) were written, or after
+     * CONTROL_FLUSH_TIMEOUT_MS.
+     */
+    public void stop() {
+        mLog.d("stop");
+        final List<DeviceConnection> draining = new ArrayList<>();
+        synchronized (this) {
+            mLastFrame = null;
+            mProbeFrame = IDLE_MESSAGE.getBytes(StandardCharsets.UTF_8);
+            for (DeviceConnection connection : mConnections.values()) {
+                if (connection.mmState.getState() == ConnectionState.STATE_CONNECTED) {
+                    draining.add(connection);
+                } else {
+                    connection.close();
+                }
+            }
+            // The threads of the draining connections find themselves removed
+            // and don't report or reconnect anymore
+            mConnections.clear();
+            mRace.clear();
+            mConnectionArray = new DeviceConnection[0];
+            stopSupervision();
+            if (mScheduler != null) {
+                mScheduler.shutdownNow();
+                mScheduler = null;
+            }
+        }
+        if (!draining.isEmpty()) {
+            Thread closer = new Thread(() -> closeDrained(draining), "ConnectionCloser");
+            closer.setDaemon(true);
+            closer.start();
+        }
+    }
+
+    /**
+     * Close the connections once their control frames were written, waiting
+     * at most CONTROL_FLUSH_TIMEOUT_MS for all of them
+     */
+    private void closeDrained(List<DeviceConnection> connections) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONTROL_FLUSH_TIMEOUT_MS);
+        for (DeviceConnection connection : connections) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (!connection.mmMailbox.awaitControlDrained(remainingMs)) {
+                mLog.w("control frames were not flushed to " + connection.mmAddress);
+            }
+            synchronized (this) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Queue a ticker frame for the FrameSenders of all the connected devices.
+     * Returns immediately; a newer frame replaces the queued one if it hasn't
+     * been sent yet. The same bytes are shared by all the devices.
+     *
+     * @param out The bytes to write
+     * @see FrameSender
+     */
+    public void write(byte[] out) {
+        mLastFrame = out;
+        mProbeFrame = out;
+        for (DeviceConnection connection : mConnectionArray) {
+            if (connection.mmState.getState() == ConnectionState.STATE_CONNECTED) {
+                connection.mmMailbox.offerTicker(out);
+            } else {
+                connection.mmMailbox.drop();
+            }
+        }
+    }
+
+    /**
+     * Queue a control frame for the FrameSenders of all the connected devices.
+     * Control frames are sent in order, before any pending ticker frame, and are
+     * never replaced.
+     *
+     * @param out The bytes to write
+     * @see FrameSender
+     */
+    public void writeControl(byte[] out) {
+        mProbeFrame = out;
+        for (DeviceConnection connection : mConnectionArray) {
+            if (connection.mmState.getState() == ConnectionState.STATE_CONNECTED) {
+                connection.mmMailbox.offerControl(out);
+            } else {
+                connection.mmMailbox.drop();
+            }
+        }
+    }
+
+    /**
+     * Return the number of frames written to the devices, including the removed
+     * ones.
+     */
+    public long getSentFrameCount() {
+        long count = mSendMetrics.getClosedSentCount();
+        for (DeviceConnection connection : mConnectionArray) {
+            count += connection.mmMailbox.getSentCount();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of ticker frames replaced by a newer frame before being sent.
+     */
+    public long getSupersededFrameCount() {
+        long count = mSendMetrics.getClosedSupersededCount();
+        for (DeviceConnection connection : mConnectionArray) {
+            count += connection.mmMailbox.getSupersededCount();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of frames which couldn't be sent.
+     */
+    public long getDroppedFrameCount() {
+        long count = mSendMetrics.getClosedDroppedCount();
+        for (DeviceConnection connection : mConnectionArray) {
+            count += connection.mmMailbox.getDroppedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Return the send path metrics, e.g. to count the frames requested by the UI.
+     */
+    public SendMetrics getSendMetrics() {
+        return mSendMetrics;
+    }
+
+    /**
+     * Return a copy of the send path metrics including the mailbox counters.
+     */
+    public SendMetrics.Snapshot getSendMetricsSnapshot() {
+        return mSendMetrics.snapshot(getSupersededFrameCount(), getDroppedFrameCount());
+    }
+
+    /**
+     * Return the state and throughput of every device.
+     */
+    public List<DeviceStats> getDeviceStats() {
+        DeviceConnection[] connections = mConnectionArray;
+        List<DeviceStats> stats = new ArrayList<>(connections.length);
+        for (DeviceConnection connection : connections) {
+            stats.add(new DeviceStats(connection.mmAddress, connection.mmName,
+                    connection.mmState.getState(),
+                    connection.mmMailbox.getSentCount(),
+                    connection.mmMailbox.getSupersededCount(),
+                    connection.mmMailbox.getDroppedCount(),
+                    connection.mmSentBytes,
+                    connection.mmRateController.getTargetFrameRate(),
+                    connection.mmRateController.getEstimatedCapacity()));
+        }
+        return stats;
+    }
+
+    /**
+     * Subscribe for the lines received from the connected devices. The listener is
+     * called on the connection threads.
+     *
+     * @param listener The listener to add
+     */
+    public synchronized void addInboundListener(InboundListener listener) {
+        InboundListener[] listeners = Arrays.copyOf(mInboundListeners, mInboundListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        mInboundListeners = listeners;
+    }
+
+    /**
+     * Unsubscribe from the data received from the connected devices.
+     *
+     * @param listener The listener to remove
+     */
+    public synchronized void removeInboundListener(InboundListener listener) {
+        InboundListener[] listeners = mInboundListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                InboundListener[] remaining = new InboundListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                mInboundListeners = remaining;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pass an inbound line to all the subscribers
+     */
+    private final InboundListener mInboundDispatcher = (buffer, offset, length) -> {
+        for (InboundListener listener : mInboundListeners) {
+            listener.onInboundFrame(buffer, offset, length);
+        }
+    };
+
+    /**
+     * Return the frame rate the slowest connected link sustains, frames per second.
+     */
+    public double getTargetFrameRate() {
+        double rate = SendRateController.MAX_FRAME_RATE;
+        for (DeviceConnection connection : mConnectionArray) {
+            if (connection.mmState.getState() == ConnectionState.STATE_CONNECTED) {
+                rate = Math.min(rate, connection.mmRateController.getTargetFrameRate());
+            }
+        }
+        return rate;
+    }
+
+    /**
+     * Return the estimated capacity of the slowest connected link, bytes per
+     * second, 0 if unknown.
+     */
+    public double getEstimatedLinkCapacity() {
+        double capacity = 0;
+        for (DeviceConnection connection : mConnectionArray) {
+            double estimate = connection.mmRateController.getEstimatedCapacity();
+            if (connection.mmState.getState() == ConnectionState.STATE_CONNECTED && estimate > 0
+                    && (capacity == 0 || estimate < capacity)) {
+                capacity = estimate;
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Set the timing of the automatic reconnects after a lost connection.
+     *
+     * @param policy The reconnect policy, null to disable reconnecting
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Set the supervision of the connected links. A write blocking longer than
+     * the timeout declares the link lost, which closes it and starts the
+     * reconnects. A link without any write for the probe interval gets the last
+     * frame again, which the device shows unchanged, so a dead link keeps being
+     * written to even when no text is sent. The probes are not counted in the
+     * send metrics.
+     * <p>
+     * A write only blocks once the socket send buffer is full, so a link which
+     * dies silently is declared lost after the buffer filled up, plus the write
+     * timeout. While idle that is about the buffer size divided by the probe
+     * size, times the probe interval; a link which dies while the text is
+     * flowing fills it much sooner. A link which the stack reports closed is
+     * declared lost by the reading thread at once.
+     *
+     * @param writeTimeoutMs  Longest time a write may block, 0 to disable the
+     *                        supervision
+     * @param probeIntervalMs Idle time after which a link is probed, 0 to
+     *                        disable the probes
+     */
+    public synchronized void setLinkSupervision(long writeTimeoutMs, long probeIntervalMs) {
+        if (writeTimeoutMs < 0 || probeIntervalMs < 0) {
+            throw new IllegalArgumentException("invalid link supervision");
+        }
+        mWriteTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+        mProbeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMs);
+        if (writeTimeoutMs == 0) {
+            stopSupervision();
+        } else if (getConnectedDeviceCount() > 0) {
+            startSupervision();
+        }
+    }
+
+    private synchronized void startSupervision() {
+        if (mSupervision == null && mWriteTimeoutNanos > 0) {
+            mSupervision = getScheduler().scheduleWithFixedDelay(this::superviseLinks,
+                    SUPERVISION_TICK_MS, SUPERVISION_TICK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void stopSupervision() {
+        if (mSupervision != null) {
+            mSupervision.cancel(false);
+            mSupervision = null;
+        }
+    }
+
+    /**
+     * Declare the links with a stalled write lost and probe the idle ones.
+     * Runs on the scheduler thread.
+     */
+    private synchronized void superviseLinks() {
+        long now = System.nanoTime();
+        for (DeviceConnection connection : new ArrayList<>(mConnections.values())) {
+            FrameSender sender = connection.mmFrameSender;
+            ConnectedThread thread = connection.mmConnectedThread;
+            if (connection.mmState.getState() != ConnectionState.STATE_CONNECTED
+                    || sender == null || thread == null) {
+                continue;
+            }
+            long writeStartedAt = sender.getWriteStartedAt();
+            if (writeStartedAt != 0 && now - writeStartedAt > mWriteTimeoutNanos) {
+                mLog.w("write to " + connection.mmAddress + " stalled for "
+                        + TimeUnit.NANOSECONDS.toMillis(now - writeStartedAt) + " ms");
+                connectionLost(connection, thread.mmGeneration);
+            } else if (writeStartedAt == 0 && mProbeIntervalNanos > 0
+                    && now - connection.mmLastWriteAt > mProbeIntervalNanos) {
+                // Skipped while a frame is waiting, which probes the link anyway
+                connection.mmMailbox.offerProbe(mProbeFrame);
+            }
+        }
+    }
+
+    /**
+     * Return the time from the last link loss to the first frame written after
+     * reconnecting, in milliseconds, -1 if no link has recovered yet.
+     */
+    public long getLastRecoveryTimeMs() {
+        long nanos = mLastRecoveryNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Return the average time from a connect request to the connected socket,
+     * in milliseconds, -1 if there were no such connects.
+     *
+     * @param cachedChannel true for the connects to a cached channel, false for
+     *                      the connects which looked the service up
+     */
+    public synchronized long getAverageConnectTimeMs(boolean cachedChannel) {
+        long count = cachedChannel ? mCachedConnects : mColdConnects;
+        long nanos = cachedChannel ? mCachedConnectNanos : mColdConnectNanos;
+        return count == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos / count);
+    }
+
+    private synchronized void recordConnectTime(boolean cachedChannel, long nanos) {
+        if (cachedChannel) {
+            mCachedConnects++;
+            mCachedConnectNanos += nanos;
+        } else {
+            mColdConnects++;
+            mColdConnectNanos += nanos;
+        }
+        mLog.i("connected in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                + (cachedChannel ? "cached channel" : "service lookup"));
+    }
+
+    /**
+     * Return the connect phase statistics of a device.
+     *
+     * @param address The address of the device
+     * @return The statistics, null if the device was never connected to
+     */
+    public synchronized ConnectStats getConnectStats(String address) {
+        return mConnectStats.get(address);
+    }
+
+    /**
+     * Write the connect phase statistics of all the devices, e.g. to a file.
+     */
+    public synchronized void dumpConnectStats(PrintWriter writer) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ConnectStats> entry : mConnectStats.entrySet()) {
+            sb.setLength(0);
+            sb.append(entry.getKey()).append('\n');
+            entry.getValue().dump(sb);
+            writer.println(sb);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Close the timeline of the pending connection attempt into the statistics
+     * of the device.
+     *
+     * @param success true if the attempt reached the first write, false if it
+     *                failed in the phase after the last completed one
+     */
+    private synchronized void recordConnectAttempt(DeviceConnection connection, boolean success) {
+        ConnectTimeline timeline = connection.mmTimeline;
+        if (timeline == null) {
+            return;
+        }
+        connection.mmTimeline = null;
+        ConnectStats stats = mConnectStats.get(connection.mmAddress);
+        if (stats == null) {
+            stats = new ConnectStats();
+            mConnectStats.put(connection.mmAddress, stats);
+        }
+        if (success) {
+            stats.recordSuccess(timeline);
+            mLog.i("first frame written to " + connection.mmAddress + " "
+                    + TimeUnit.NANOSECONDS.toMillis(timeline.getTotalNanos()) + " ms after the connect request");
+        } else {
+            stats.recordFailure(timeline);
+            mLog.w("connect to " + connection.mmAddress + " failed in phase "
+                    + ConnectTimeline.getPhaseName(Math.min(timeline.getCompletedPhases(),
+                    ConnectTimeline.PHASE_COUNT - 1)));
+        }
+    }
+
+    /**
+     * Close the pending connection attempt with the outcome of its first write.
+     * Called on the FrameSender thread; the last write of a cancelled sender
+     * belongs to an earlier attempt and is ignored.
+     *
+     * @param written   Whether the frame reached the output stream
+     * @param writtenAt {@link System#nanoTime()} of the end of the write
+     */
+    private synchronized void recordFirstWrite(DeviceConnection connection, boolean written, long writtenAt) {
+        ConnectTimeline timeline = connection.mmTimeline;
+        if (timeline == null || Thread.currentThread() != connection.mmFrameSender) {
+            return;
+        }
+        if (written) {
+            timeline.mark(ConnectTimeline.PHASE_FIRST_WRITE, writtenAt);
+        }
+        recordConnectAttempt(connection, written);
+    }
+
+    /**
+     * Schedule the next reconnect attempt to the device of the connection.
+     *
+     * @return false if the policy gave up or reconnecting is disabled
+     */
+    private synchronized boolean scheduleReconnect(final DeviceConnection connection) {
+        if (mReconnectPolicy == null || mConnections.get(connection.mmAddress) != connection) {
+            return false;
+        }
+        connection.mmReconnectAttempt++;
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connection.mmLinkLostAt);
+        long delayMs = mReconnectPolicy.getDelayMs(connection.mmReconnectAttempt, elapsedMs, mRandom);
+        if (delayMs < 0) {
+            mLog.w("giving up reconnecting to " + connection.mmAddress + " after "
+                    + (connection.mmReconnectAttempt - 1) + " attempts");
+            connection.mmReconnectAttempt = 0;
+            return false;
+        }
+        mLog.d("reconnect attempt " + connection.mmReconnectAttempt + " to "
+                + connection.mmAddress + " in " + delayMs + " ms");
+
+        // Release the failed connection and show that we're connecting again
+        connection.cancelThreads();
+        final int generation = connection.mmState.begin();
+
+        schedule(() -> {
+            synchronized (ConnectionManager.this) {
+                // The device may have been removed or reconnected meanwhile
+                if (mConnections.get(connection.mmAddress) == connection
+                        && connection.mmState.isCurrent(generation)) {
+                    openConnection(connection, generation);
+                }
+            }
+        }, delayMs);
+        return true;
+    }
+
+    /**
+     * Run the task on the scheduler thread after the delay
+     */
+    private synchronized void schedule(Runnable task, long delayMs) {
+        getScheduler().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ConnectScheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mScheduler;
+    }
+
+    /**
+     * Account the first frame written after the link was lost
+     */
+    private void onDisplayRecovered(DeviceConnection connection) {
+        long lostAt = connection.mmLinkLostAt;
+        if (lostAt != 0) {
+            connection.mmLinkLostAt = 0;
+            mLastRecoveryNanos = System.nanoTime() - lostAt;
+            mLog.i("display of " + connection.mmAddress + " recovered in "
+                    + getLastRecoveryTimeMs() + " ms");
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the listener.
+     *
+     * @param generation The generation of the failed attempt
+     */
+    private void connectionFailed(DeviceConnection connection, int generation) {
+        boolean reconnecting;
+        synchronized (this) {
+            if (mConnections.get(connection.mmAddress) != connection
+                    || !connection.mmState.isCurrent(generation)) {
+                return;
+            }
+            recordConnectAttempt(connection, false);
+            reconnecting = connection.mmReconnectAttempt > 0;
+            if (reconnecting && scheduleReconnect(connection)) {
+                return;
+            }
+            boolean racing = mRace.contains(connection);
+            removeConnection(connection);
+            if (racing && !mRace.isEmpty()) {
+                // The other devices of the race may still answer
+                return;
+            }
+        }
+
+        mListener.onConnectionFailed(connection.mmAddress, reconnecting);
+
+        if (reconnecting && getState() == ConnectionState.STATE_NONE) {
+            mListener.onDisconnected();
+        }
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the listener.
+     *
+     * @param generation The generation of the lost connection
+     */
+    private void connectionLost(DeviceConnection connection, int generation) {
+        // Try to bring the connection back first
+        synchronized (this) {
+            if (mConnections.get(connection.mmAddress) != connection
+                    || !connection.mmState.isCurrent(generation)) {
+                return;
+            }
+            // The link may be lost before the first write
+            recordConnectAttempt(connection, false);
+            connection.mmLinkLostAt = System.nanoTime();
+            connection.mmReconnectAttempt = 0;
+            if (scheduleReconnect(connection)) {
+                mListener.onConnectionLost(connection.mmAddress, true);
+                return;
+            }
+            removeConnection(connection);
+        }
+
+        mListener.onConnectionLost(connection.mmAddress, false);
+
+        if (getState() == ConnectionState.STATE_NONE) {
+            mListener.onDisconnected();
+        }
+    }
+
+    /**
+     * The connection to one device: its threads, state and outbound mailbox.
+     * The fields are guarded by the manager monitor; the ones read on the
+     * send path are volatile. The state is read without locking; it only
+     * moves under the manager monitor, or from a thread of the current
+     * generation.
+     */
+    private class DeviceConnection implements FrameSender.Listener, ConnectionState.Listener {
+        private final String mmAddress;
+        private final FrameMailbox mmMailbox = new FrameMailbox();
+        private final SendRateController mmRateController = new SendRateController();
+        private volatile String mmName;
+        private final ConnectionState mmState = new ConnectionState(this);
+        private volatile long mmSentBytes;
+        private ConnectThread mmConnectThread;
+        private ConnectedThread mmConnectedThread;
+        private FrameSender mmFrameSender;
+        private int mmReconnectAttempt;        // 0 when not reconnecting
+        private volatile long mmLinkLostAt;    // nanoTime of the link loss, 0 if recovered
+        private volatile long mmLastWriteAt;   // nanoTime of the last frame written
+        private volatile ConnectTimeline mmTimeline; // pending attempt, null after the first write
+
+        DeviceConnection(String address) {
+            mmAddress = address;
+        }
+
+        /**
+         * Cancel the connection threads and drop the unsent frames
+         */
+        void cancelThreads() {
+            if (mmConnectThread != null) {
+                mmConnectThread.cancel();
+                mmConnectThread = null;
+            }
+
+            if (mmFrameSender != null) {
+                mmFrameSender.cancel();
+                mmFrameSender = null;
+            }
+
+            if (mmConnectedThread != null) {
+                mmConnectedThread.cancel();
+                mmConnectedThread = null;
+            }
+
+            mmMailbox.clear();
+        }
+
+        @Override
+        public void onStateChanged(int from, int to, int generation) {
+            mLog.d(mmAddress + " state " + from + " -> " + to + ", generation " + generation);
+            mListener.onStateChanged(mmAddress, to);
+        }
+
+        @Override
+        public void onFrameWritten(byte[] frame, boolean probe, long latencyNanos) {
+            mmLastWriteAt = System.nanoTime();
+            if (probe) {
+                return;
+            }
+            mmSentBytes += frame.length;
+            mSendMetrics.onFrameWritten(frame.length, latencyNanos);
+
+            if (mmTimeline != null) {
+                recordFirstWrite(this, true, mmLastWriteAt);
+            }
+            onDisplayRecovered(this);
+        }
+
+        @Override
+        public void onFrameFailed(byte[] frame, boolean probe, IOException e) {
+            mLog.e("Exception during write", e);
+            if (probe) {
+                return;
+            }
+            mSendMetrics.onWriteFailed();
+            if (mmTimeline != null) {
+                recordFirstWrite(this, false, System.nanoTime());
+            }
+        }
+
+        /**
+         * Cancel everything and forget about the device
+         */
+        void close() {
+            mmState.reset();
+            mmReconnectAttempt = 0;
+            mmLinkLostAt = 0;
+            mmTimeline = null;
+            cancelThreads();
+            mSendMetrics.onMailboxClosed(mmMailbox);
+        }
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails. A device connected before is tried on its cached
+     * channel first, falling back to the service lookup.
+     */
+    private class ConnectThread extends Thread {
+        private final DeviceConnection mmConnection;
+        private final int mmGeneration;
+        private volatile Transport mmTransport;
+        private final long mmRequestedAt;
+        private final ConnectTimeline mmTimeline;
+        private boolean mmUsingCachedChannel;
+        private volatile boolean mmCanceled;
+
+        ConnectThread(DeviceConnection connection, int generation) {
+            super("ConnectThread");
+            mmConnection = connection;
+            mmGeneration = generation;
+            mmRequestedAt = System.nanoTime();
+            mmTimeline = connection.mmTimeline;
+
+            // Get a Transport for a connection with the given device
+            Transport tmp = mFactory.createCachedTransport(connection.mmAddress);
+            mmUsingCachedChannel = tmp != null;
+            if (tmp == null) {
+                tmp = mFactory.createTransport(connection.mmAddress);
+            }
+            mmTransport = tmp;
+            if (tmp != null) {
+                mmTimeline.mark(ConnectTimeline.PHASE_SOCKET_CREATE, System.nanoTime());
+            }
+        }
+
+        /**
+         * Connect the current transport, closing it on failure.
+         *
+         * @return true if the transport is connected
+         */
+        private boolean connectSocket() {
+            Transport transport = mmTransport;
+            if (transport == null) {
+                return false;
+            }
+            if (mmCanceled) {
+                // cancel() may have closed the previous socket while this one
+                // was being created
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    mLog.e("close() of a cancelled socket failed", e);
+                }
+                return false;
+            }
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                transport.connect();
+                return true;
+            } catch (IOException e) {
+                mLog.e("connection failure", e); // Close the socket
+                try {
+                    transport.close();
+                } catch (IOException e2) {
+                    mLog.e("unable to close() socket during connection failure", e2);
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            mLog.i("BEGIN mConnectThread");
+
+            // E.g. cancel the discovery, it would slow the connection down
+            if (!mFactory.prepareConnect()) {
+                return;
+            }
+            mmTimeline.mark(ConnectTimeline.PHASE_CANCEL_DISCOVERY, System.nanoTime());
+
+            // Make a connection to the Transport
+            boolean connected = connectSocket();
+            if (!connected && mmUsingCachedChannel && !mmCanceled) {
+                // The device may have moved its service, look it up again
+                mLog.w("cached channel of " + mmConnection.mmAddress + " failed, falling back to the lookup");
+                mFactory.onCachedTransportFailed(mmConnection.mmAddress);
+                mmUsingCachedChannel = false;
+                mmTransport = mFactory.createTransport(mmConnection.mmAddress);
+                connected = connectSocket();
+            }
+            if (!connected) {
+                if (!mmCanceled) {
+                    connectionFailed(mmConnection, mmGeneration);
+                }
+                return;
+            }
+
+            long connectedAt = System.nanoTime();
+            mmTimeline.mark(ConnectTimeline.PHASE_SOCKET_CONNECT, connectedAt);
+            recordConnectTime(mmUsingCachedChannel, connectedAt - mmRequestedAt);
+            if (!mmUsingCachedChannel) {
+                mFactory.onTransportConnected(mmConnection.mmAddress, mmTransport);
+            }
+
+            // Start the connected thread
+            connected(mmConnection, mmTransport, mmGeneration);
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            Transport transport = mmTransport;
+            if (transport == null) {
+                return;
+            }
+            try {
+                transport.close();
+            } catch (IOException e) {
+                mLog.e("close() of connect socket failed", e);
+            }
+        }
+    }
+
+    /**
+     * This thread runs during a connection with a remote device.
+     * It handles all incoming transmissions and owns the link; the
+     * outgoing ones are written by the {@link FrameSender}.
+     */
+    private class ConnectedThread extends Thread {
+        private final DeviceConnection mmConnection;
+        private final int mmGeneration;
+        private final Transport mmTransport;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        private volatile boolean mmRunning = true;
+
+        ConnectedThread(DeviceConnection connection, Transport transport, int generation) {
+            super("ConnectedThread");
+            mLog.d("create ConnectedThread");
+            mmConnection = connection;
+            mmGeneration = generation;
+            mmTransport = transport;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            // Get the Transport input and output streams
+            try {
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
+                ConnectTimeline timeline = connection.mmTimeline;
+                if (timeline != null) {
+                    timeline.mark(ConnectTimeline.PHASE_STREAMS, System.nanoTime());
+                }
+            } catch (IOException e) {
+                mLog.e("temp sockets not created", e);
+            }
+
+            mmInStream = tmpIn;
+            mmOutStream = tmpOut;
+        }
+
+        @Override
+        public void run() {
+            mLog.i("BEGIN mConnectedThread");
+            InboundFramer framer = new InboundFramer();
+
+            // Keep listening to the InputStream while connected
+            while (mmRunning) {
+                try {
+                    // Read from the InputStream
+                    if (framer.readFrom(mmInStream) < 0) {
+                        throw new IOException("end of stream");
+                    }
+
+                    // Frame and deliver the data on this thread, the subscribers
+                    // hold the reading back if they can't keep up
+                    if (mInboundListeners.length == 0) {
+                        framer.discard();
+                    } else {
+                        framer.dispatch(mInboundDispatcher);
+                    }
+                } catch (IOException e) {
+                    if (mmRunning) {
+                        mLog.e("disconnected", e);
+                        connectionLost(mmConnection, mmGeneration);
+                    }
+                    break;
+                }
+            }
+        }
+
+        void cancel() {
+            mmRunning = false;
+            try {
+                mmTransport.close();
+            } catch (IOException e) {
+                mLog.e("close() of connect socket failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of one device connection, together with the generation of the
+ * connection attempt it belongs to, held in a single atomic word.
+ * <p>
+ * Every new attempt and every teardown starts a new generation. The threads
+ * of an attempt carry its generation, and a thread of an older attempt can't
+ * move the state any more, so a late ConnectThread or ConnectedThread can't
+ * overwrite what a newer one did. The legal transitions are:
+ * <pre>
+ *   NONE, CONNECTING, CONNECTED -&gt; CONNECTING   {@link #begin()}, new generation
+ *   CONNECTING -&gt; CONNECTED                     {@link #connected(int)}, same generation
+ *   CONNECTING, CONNECTED -&gt; NONE               {@link #reset()}, new generation
+ * </pre>
+ * Transitions are compare-and-set: exactly one caller wins each of them and the
+ * listener hears about it exactly once. Reading the state never blocks.
+ */
+public class ConnectionState {
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    /**
+     * Receives every transition, on the thread which made it.
+     */
+    public interface Listener {
+
+        /**
+         * @param from       The previous state
+         * @param to         The new state
+         * @param generation The generation of the new state
+         */
+        void onStateChanged(int from, int to, int generation);
+    }
+
+    /**
+     * Generation in the high half, state in the low half
+     */
+    private final AtomicLong mValue = new AtomicLong(pack(0, STATE_NONE));
+    private final Listener mListener;
+
+    /**
+     * @param listener Receiver of the transitions
+     */
+    public ConnectionState(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return One of the STATE_ constants
+     */
+    public int getState() {
+        return stateOf(mValue.get());
+    }
+
+    /**
+     * @return The generation of the current state
+     */
+    public int getGeneration() {
+        return generationOf(mValue.get());
+    }
+
+    /**
+     * @param generation A generation returned by {@link #begin()}
+     * @return true if no newer attempt or teardown happened since
+     */
+    public boolean isCurrent(int generation) {
+        return generationOf(mValue.get()) == generation;
+    }
+
+    /**
+     * Start a new connection attempt, superseding any earlier one.
+     *
+     * @return The generation of the attempt
+     */
+    public int begin() {
+        while (true) {
+            long value = mValue.get();
+            int generation = generationOf(value) + 1;
+            if (mValue.compareAndSet(value, pack(generation, STATE_CONNECTING))) {
+                mListener.onStateChanged(stateOf(value), STATE_CONNECTING, generation);
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Mark the attempt connected.
+     *
+     * @param generation The generation of the attempt
+     * @return false if the attempt is stale or not connecting
+     */
+    public boolean connected(int generation) {
+        long expected = pack(generation, STATE_CONNECTING);
+        if (!mValue.compareAndSet(expected, pack(generation, STATE_CONNECTED))) {
+            return false;
+        }
+        mListener.onStateChanged(STATE_CONNECTING, STATE_CONNECTED, generation);
+        return true;
+    }
+
+    /**
+     * Tear the connection down, superseding any attempt.
+     *
+     * @return false if there was nothing to tear down
+     */
+    public boolean reset() {
+        while (true) {
+            long value = mValue.get();
+            int state = stateOf(value);
+            if (state == STATE_NONE) {
+                return false;
+            }
+            int generation = generationOf(value) + 1;
+            if (mValue.compareAndSet(value, pack(generation, STATE_NONE))) {
+                mListener.onStateChanged(state, STATE_NONE, generation);
+                return true;
+            }
+        }
+    }
+
+    private static long pack(int generation, int state) {
+        return ((long) generation << 32) | state;
+    }
+
+    private static int generationOf(long value) {
+        return (int) (value >>> 32);
+    }
+
+    private static int stateOf(long value) {
+        return (int) value;
+    }
+}
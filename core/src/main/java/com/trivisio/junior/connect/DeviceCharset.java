@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The symbols a Junior can show, and how any other text is shown with them.
+ * <p>
+ * Every UTF-16 char maps to zero or more device glyphs: a glyph of the device
+ * font stays as is, an accented letter loses its accents, typographic quotes,
+ * dashes, spaces and ligatures become their plain counterparts, combining marks
+ * and invisible format characters disappear, and anything else becomes
+ * {@link #REPLACEMENT}. The mapping is precomputed into a table of 256-char
+ * pages looked up by the high and the low byte of the char; the pages which
+ * hold nothing but replacements are shared.
+ * <p>
+ * The {@link TickerEncoder} maps the frames as it encodes them, so the text
+ * keeps its symbols up to the layout and every symbol sent costs a known
+ * number of bytes on the link. Immutable and thread-safe.
+ */
+public final class DeviceCharset {
+
+    /**
+     * Shown for the symbols the device has no glyph or fallback for
+     */
+    public static final char REPLACEMENT = '?';
+
+    // Fallbacks which no Unicode decomposition provides, as pairs of the
+    // symbol and its replacement
+    private static final String[] FALLBACKS = {
+            "\u2018", "'", "\u2019", "'", "\u201A", "'", "\u201B", "'", "\u2032", "'",
+            "\u2039", "'", "\u203A", "'",
+            "\u201C", "\"", "\u201D", "\"", "\u201E", "\"", "\u201F", "\"", "\u2033", "\"",
+            "\u00AB", "\"", "\u00BB", "\"",
+            "\u2010", "-", "\u2011", "-", "\u2012", "-", "\u2013", "-", "\u2014", "-",
+            "\u2015", "-", "\u2212", "-",
+            "\u2022", "*", "\u00B7", ".", "\u2044", "/", "\u00D7", "x", "\u00F7", "/",
+            "\u00A1", "!", "\u00BF", "?", "\u00A9", "(C)", "\u00AE", "(R)", "\u20AC", "EUR",
+            "\u00BC", "1/4", "\u00BD", "1/2", "\u00BE", "3/4",
+            "\u00DF", "ss", "\u00C6", "AE", "\u00E6", "ae", "\u0152", "OE", "\u0153", "oe",
+            "\u00D8", "O", "\u00F8", "o", "\u0110", "D", "\u0111", "d", "\u00D0", "D",
+            "\u00F0", "d", "\u0141", "L", "\u0142", "l", "\u0131", "i", "\u00DE", "Th",
+            "\u00FE", "th",
+    };
+
+    // Pages which may hold more than replacements: Latin, combining marks,
+    // punctuation, letterlike symbols, spaces, ligatures, format characters
+    // and fullwidth forms
+    private static final int[] MAPPED_PAGES = {
+            0x00, 0x01, 0x02, 0x03, 0x1E, 0x20, 0x21, 0x22, 0x30, 0xFB, 0xFE, 0xFF
+    };
+
+    private static final int PAGE_SIZE = 256;
+
+    // Table entries which aren't glyphs: nothing, or an index into the expansions
+    private static final char REMOVED = '\uFFFF';
+    private static final char EXPANSION_BASE = '\uE000';
+
+    // Longest fallback taken from a decomposition
+    private static final int MAX_EXPANSION = 4;
+
+    // The profiles are built from the tables above, so they are declared after them
+
+    /**
+     * Printable ASCII, one byte per glyph
+     */
+    public static final DeviceCharset ASCII = new DeviceCharset((char) 0x7E);
+
+    /**
+     * Printable ASCII and Latin-1, one or two UTF-8 bytes per glyph
+     */
+    public static final DeviceCharset LATIN1 = new DeviceCharset((char) 0xFF);
+
+    private final char mMaxGlyph;
+    private final char[][] mPages = new char[PAGE_SIZE][];
+    private final String[] mExpansions;
+
+    private DeviceCharset(char maxGlyph) {
+        mMaxGlyph = maxGlyph;
+        List<String> expansions = new ArrayList<>();
+
+        char[] replacements = new char[PAGE_SIZE];
+        Arrays.fill(replacements, REPLACEMENT);
+        Arrays.fill(mPages, replacements);
+        for (int page : MAPPED_PAGES) {
+            mPages[page] = buildPage(page, expansions);
+        }
+
+        // A surrogate pair is one symbol: the high half shows the replacement
+        char[] removed = new char[PAGE_SIZE];
+        Arrays.fill(removed, REMOVED);
+        for (int page = Character.MIN_LOW_SURROGATE >>> 8; page <= Character.MAX_LOW_SURROGATE >>> 8; page++) {
+            mPages[page] = removed;
+        }
+        mExpansions = expansions.toArray(new String[0]);
+    }
+
+    private char[] buildPage(int page, List<String> expansions) {
+        char[] entries = new char[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            String glyphs = glyphsOf((char) (page << 8 | i));
+            if (glyphs.isEmpty()) {
+                entries[i] = REMOVED;
+            } else if (glyphs.length() == 1) {
+                entries[i] = glyphs.charAt(0);
+            } else {
+                int index = expansions.indexOf(glyphs);
+                if (index < 0) {
+                    index = expansions.size();
+                    expansions.add(glyphs);
+                }
+                entries[i] = (char) (EXPANSION_BASE + index);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Work out the device glyphs of a symbol
+     */
+    private String glyphsOf(char c) {
+        if (isGlyph(c) || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+            // The whitespace separates the words, the layout turns it into spaces
+            return String.valueOf(c);
+        }
+        for (int i = 0; i < FALLBACKS.length; i += 2) {
+            if (FALLBACKS[i].charAt(0) == c && areGlyphs(FALLBACKS[i + 1])) {
+                return FALLBACKS[i + 1];
+            }
+        }
+        int type = Character.getType(c);
+        if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                || type == Character.FORMAT || type == Character.CONTROL) {
+            return "";
+        }
+        if (Character.isSpaceChar(c)) {
+            return " ";
+        }
+        // Compatibility decomposition without the accents, e.g. the
+        // fullwidth forms, the ligatures and the accented letters
+        String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKD);
+        StringBuilder base = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char d = decomposed.charAt(i);
+            if (Character.getType(d) != Character.NON_SPACING_MARK) {
+                base.append(d);
+            }
+        }
+        if (base.length() > 0 && base.length() <= MAX_EXPANSION && areGlyphs(base)) {
+            return base.toString();
+        }
+        return String.valueOf(REPLACEMENT);
+    }
+
+    /**
+     * @return Whether the device font has a glyph for the symbol
+     */
+    public boolean isGlyph(char c) {
+        return c >= ' ' && c <= mMaxGlyph && (c < 0x7F || c >= 0xA0) && c != '\u00A0' && c != '\u00AD';
+    }
+
+    private boolean areGlyphs(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!isGlyph(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of UTF-8 bytes of any glyph of the device
+     */
+    public int getMaxBytesPerGlyph() {
+        return mMaxGlyph < 0x80 ? 1 : 2;
+    }
+
+    /**
+     * Return the number of device glyphs a symbol is shown with: 1 for a glyph
+     * or a one-glyph fallback, more for a fallback like "EUR", 0 if it shows as
+     * nothing, like a combining mark or the low half of a surrogate pair.
+     */
+    public int getGlyphCount(char c) {
+        char glyph = mPages[c >>> 8][c & 0xFF];
+        if (glyph == REMOVED) {
+            return 0;
+        }
+        return glyph < EXPANSION_BASE ? 1 : mExpansions[glyph - EXPANSION_BASE].length();
+    }
+
+    /**
+     * Write the device glyphs of a symbol.
+     *
+     * @param dest   The destination, with room for {@link #getGlyphCount(char)} glyphs
+     * @param offset Where the glyphs go
+     * @return The number of glyphs written
+     */
+    public int getGlyphs(char c, char[] dest, int offset) {
+        char glyph = mPages[c >>> 8][c & 0xFF];
+        if (glyph == REMOVED) {
+            return 0;
+        }
+        if (glyph < EXPANSION_BASE) {
+            dest[offset] = glyph;
+            return 1;
+        }
+        String expansion = mExpansions[glyph - EXPANSION_BASE];
+        expansion.getChars(0, expansion.length(), dest, offset);
+        return expansion.length();
+    }
+
+    /**
+     * Return the text as the device shows it.
+     *
+     * @param text The text to map
+     * @return The device glyphs, the same instance if the text holds nothing else
+     */
+    public CharSequence map(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (mPages[c >>> 8][c & 0xFF] != c) {
+                StringBuilder mapped = new StringBuilder(length);
+                mapped.append(text, 0, i);
+                map(text, i, length, mapped);
+                return mapped;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Append the device glyphs of a range of the text, in a single pass.
+     *
+     * @param text  The text to map
+     * @param start Start of the range
+     * @param end   End of the range, exclusive
+     * @param dest  The destination of the glyphs
+     */
+    public void map(CharSequence text, int start, int end, StringBuilder dest) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            char glyph = mPages[c >>> 8][c & 0xFF];
+            if (glyph < EXPANSION_BASE) {
+                dest.append(glyph);
+            } else if (glyph != REMOVED) {
+                dest.append(mExpansions[glyph - EXPANSION_BASE]);
+            }
+        }
+    }
+}
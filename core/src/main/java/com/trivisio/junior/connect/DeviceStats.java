@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Snapshot of the state and throughput of one device connection.
+ */
+public class DeviceStats {
+
+    public final String address;
+    public final String name;
+    public final int state;
+    public final long sentFrames;
+    public final long supersededFrames;
+    public final long droppedFrames;
+    public final long sentBytes;
+    public final double targetFrameRate;
+    public final double linkCapacity;
+
+    /**
+     * @param address          The device MAC address
+     * @param name             The device name, null if unknown
+     * @param state            One of the ConnectionState STATE_ constants
+     * @param sentFrames       Frames written to the device
+     * @param supersededFrames Frames replaced by a newer one before being written
+     * @param droppedFrames    Frames which couldn't be written
+     * @param sentBytes        Bytes written to the device
+     * @param targetFrameRate  Frame rate the link sustains, frames per second
+     * @param linkCapacity     Estimated link capacity, bytes per second
+     */
+    public DeviceStats(String address, String name, int state, long sentFrames,
+                       long supersededFrames, long droppedFrames, long sentBytes,
+                       double targetFrameRate, double linkCapacity) {
+        this.address = address;
+        this.name = name;
+        this.state = state;
+        this.sentFrames = sentFrames;
+        this.supersededFrames = supersededFrames;
+        this.droppedFrames = droppedFrames;
+        this.sentBytes = sentBytes;
+        this.targetFrameRate = targetFrameRate;
+        this.linkCapacity = linkCapacity;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded mailbox between the frame producers and the writer thread.
+ * <p>
+ * Ticker frames go to a single slot: the Junior shows only the latest 120 symbols,
+ * so a newer frame replaces an older one which hasn't been sent yet. Control frames
+ * (e.g. the idle "Waiting for message" frame) go to a small FIFO lane which is always
+ * drained before the ticker slot. A probe of an idle link takes the ticker slot
+ * only while it's empty, and isn't counted with the frames.
+ */
+public class FrameMailbox {
+
+    // Maximum number of control frames waiting to be sent
+    private static final int CONTROL_CAPACITY = 8;
+
+    private final ArrayDeque<byte[]> mControl = new ArrayDeque<>(CONTROL_CAPACITY);
+    private byte[] mTicker;
+    private boolean mTickerIsProbe;
+
+    /**
+     * Whether a control frame was taken by the writer and isn't written yet
+     */
+    private boolean mControlInFlight;
+
+    /**
+     * Whether the frame taken by the writer last is a probe
+     */
+    private boolean mProbeInFlight;
+
+    // Frame counters
+    private long mSent;
+    private long mSuperseded;
+    private long mDropped;
+
+    /**
+     * Put a ticker frame into the mailbox, replacing the unsent one if any.
+     *
+     * @param frame The frame bytes
+     */
+    public synchronized void offerTicker(byte[] frame) {
+        if (mTicker != null && !mTickerIsProbe) {
+            mSuperseded++;
+        }
+        mTicker = frame;
+        mTickerIsProbe = false;
+        notifyAll();
+    }
+
+    /**
+     * Put a probe into the ticker slot, unless a frame is waiting to be sent
+     * anyway. A ticker frame offered before the probe is taken replaces it.
+     *
+     * @param frame The probe bytes, which the device must show unchanged
+     * @return false if a frame is waiting and the probe wasn't queued
+     */
+    public synchronized boolean offerProbe(byte[] frame) {
+        if (mTicker != null || !mControl.isEmpty()) {
+            return false;
+        }
+        mTicker = frame;
+        mTickerIsProbe = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Put a control frame into the mailbox.
+     *
+     * @param frame The frame bytes
+     * @return false if the control lane is full and the frame was dropped
+     */
+    public synchronized boolean offerControl(byte[] frame) {
+        if (mControl.size() >= CONTROL_CAPACITY) {
+            mDropped++;
+            return false;
+        }
+        mControl.addLast(frame);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait for the next frame to write. Control frames are returned first.
+     * Every returned frame must be reported back with {@link #done(boolean)}.
+     *
+     * @return The frame bytes
+     * @throws InterruptedException if the writer was cancelled while waiting
+     */
+    public synchronized byte[] take() throws InterruptedException {
+        while (mControl.isEmpty() && mTicker == null) {
+            wait();
+        }
+        byte[] frame = mControl.pollFirst();
+        if (frame != null) {
+            mControlInFlight = true;
+            mProbeInFlight = false;
+            return frame;
+        }
+        frame = mTicker;
+        mTicker = null;
+        mProbeInFlight = mTickerIsProbe;
+        mTickerIsProbe = false;
+        return frame;
+    }
+
+    /**
+     * Return whether the frame returned by {@link #take()} last is a probe.
+     * Called by the writer before it reports the frame with {@link #done(boolean)}.
+     */
+    public synchronized boolean isProbeInFlight() {
+        return mProbeInFlight;
+    }
+
+    /**
+     * Report the outcome of writing the frame returned by {@link #take()}.
+     *
+     * @param sent Whether the frame reached the output stream
+     */
+    public synchronized void done(boolean sent) {
+        if (mProbeInFlight) {
+            mProbeInFlight = false;
+        } else if (sent) {
+            mSent++;
+        } else {
+            mDropped++;
+        }
+        mControlInFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Count a frame which was rejected before reaching the mailbox.
+     */
+    public synchronized void drop() {
+        mDropped++;
+    }
+
+    /**
+     * Drop all the frames waiting to be sent.
+     */
+    public synchronized void clear() {
+        mDropped += mControl.size();
+        mControl.clear();
+        if (mTicker != null && !mTickerIsProbe) {
+            mDropped++;
+        }
+        mTicker = null;
+        mTickerIsProbe = false;
+        mControlInFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Wait until all the control frames are written.
+     *
+     * @param timeoutMs Maximum time to wait
+     * @return false if the control lane wasn't drained in time
+     */
+    public synchronized boolean awaitControlDrained(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (!mControl.isEmpty() || mControlInFlight) {
+            long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remainingMs <= 0) {
+                return false;
+            }
+            try {
+                wait(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    public synchronized long getSupersededCount() {
+        return mSuperseded;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+}
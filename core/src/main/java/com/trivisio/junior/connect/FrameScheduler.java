@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the ticker frames between the layout and the device, on its own thread.
+ * <p>
+ * Frames go out on a fixed cadence. Text which doesn't scroll the screen, like
+ * the last line growing or a partial result being revised, is shown on the next
+ * tick. Text which scrolls the screen is shown one line at a time, each scroll
+ * step at least the dwell time after the previous one, so every line stays up
+ * long enough to be read. Once the text waiting to be shown would exceed the
+ * latency budget, the screen catches up with the live text at once.
+ * <p>
+ * The ticks are timed against the monotonic clock at absolute deadlines, so a
+ * late wake-up doesn't delay the following ones; its lateness is measured as
+ * the jitter.
+ */
+public class FrameScheduler {
+
+    public interface Listener {
+        /**
+         * A frame is due: the shown part of the text or the text itself changed.
+         * Called on the thread of the scheduler.
+         *
+         * @param layout The layout holding the frame, owned by the scheduler and
+         *               only valid during the call
+         */
+        void onFrame(TickerLayout layout);
+    }
+
+    // Text kept before the live end: what a render looks at, plus the text
+    // waiting to be scrolled in. Further behind, the screen jumps to live
+    private static final int WINDOW = 2 * TickerLayout.SCAN_LIMIT;
+
+    private final long mFrameIntervalNanos;
+    private final long mMinDwellNanos;
+    private final long mLatencyBudgetNanos;
+
+    // The live text, its last WINDOW symbols. Guarded by this
+    private final char[] mLive = new char[WINDOW];
+    private int mLiveLength;
+    private int mLiveBase;          // text offset of mLive[0]
+    private long mLiveVersion;
+    private long mFirstUnseenAt;    // nanoTime of the first submit the thread hasn't seen, 0 if none
+
+    // Statistics, guarded by this
+    private long mTicks;
+    private long mJitterSumNanos;
+    private long mMaxJitterNanos;
+    private long mMaxLatencyNanos;
+    private long mCatchUps;
+
+    private SchedulerThread mThread;
+
+    /**
+     * @param frameIntervalMs Time between the ticks
+     * @param minDwellMs      Minimum time between two scroll steps
+     * @param latencyBudgetMs Longest time a text waits before it is shown
+     */
+    public FrameScheduler(long frameIntervalMs, long minDwellMs, long latencyBudgetMs) {
+        if (frameIntervalMs <= 0 || minDwellMs < 0 || latencyBudgetMs < frameIntervalMs) {
+            throw new IllegalArgumentException("invalid frame scheduler timing");
+        }
+        mFrameIntervalNanos = TimeUnit.MILLISECONDS.toNanos(frameIntervalMs);
+        mMinDwellNanos = TimeUnit.MILLISECONDS.toNanos(minDwellMs);
+        mLatencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(latencyBudgetMs);
+    }
+
+    /**
+     * Start producing the frames on a new thread.
+     *
+     * @param listener The receiver of the frames
+     */
+    public synchronized void start(Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new SchedulerThread(listener);
+        mThread.start();
+    }
+
+    /**
+     * Stop producing the frames. No callbacks follow once it returns.
+     */
+    public void stop() {
+        SchedulerThread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.cancel();
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Take the current text of the layout as the live text. Copies the end of
+     * the text, the layout may change once it returns.
+     *
+     * @param layout The layout fed with the edits
+     */
+    public synchronized void submit(TickerLayout layout) {
+        int length = layout.length();
+        int start = Math.max(0, length - WINDOW);
+        layout.getChars(start, length, mLive, 0);
+        mLiveLength = length - start;
+        mLiveBase = start;
+        mLiveVersion++;
+        if (mFirstUnseenAt == 0) {
+            mFirstUnseenAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The number of ticks so far
+     */
+    public synchronized long getTickCount() {
+        return mTicks;
+    }
+
+    /**
+     * @return The mean lateness of the ticks, in nanoseconds
+     */
+    public synchronized long getMeanJitterNanos() {
+        return mTicks == 0 ? 0 : mJitterSumNanos / mTicks;
+    }
+
+    /**
+     * @return The largest lateness of a tick, in nanoseconds
+     */
+    public synchronized long getMaxJitterNanos() {
+        return mMaxJitterNanos;
+    }
+
+    /**
+     * @return The longest time from a submit to the frame showing its text, in
+     * nanoseconds
+     */
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /**
+     * @return The number of times the screen jumped to the live text to keep
+     * within the latency budget
+     */
+    public synchronized long getCatchUpCount() {
+        return mCatchUps;
+    }
+
+    private synchronized void onTick(long jitterNanos) {
+        mTicks++;
+        mJitterSumNanos += jitterNanos;
+        mMaxJitterNanos = Math.max(mMaxJitterNanos, jitterNanos);
+    }
+
+    private synchronized void onShown(long latencyNanos, boolean catchUp) {
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+        if (catchUp) {
+            mCatchUps++;
+        }
+    }
+
+    private class SchedulerThread extends Thread {
+        private final Listener mmListener;
+        private final TickerLayout mmLayout = new TickerLayout();
+        private volatile boolean mmCanceled;
+
+        // Copy of the live text
+        private final char[] mmText = new char[WINDOW];
+        private int mmLength;
+        private int mmBase;
+        private long mmVersion = -1;
+
+        // The frame on the screen: where its text ends and its top lines start
+        private int mmShownEnd = -1;
+        private int mmShownLineCount;
+        private int mmShownTop;
+        private int mmShownSecond;
+
+        private long mmPendingSince;    // nanoTime of the oldest text not shown, 0 if none
+        private long mmLastScrollAt;
+        private long mmBlockedUntil;    // nanoTime before which the same text can't move the screen
+        private int mmRenderBase;       // text offset of the last rendered text
+
+        SchedulerThread(Listener listener) {
+            super("FrameScheduler");
+            mmListener = listener;
+        }
+
+        @Override
+        public void run() {
+            long deadline = System.nanoTime();
+            try {
+                while (!mmCanceled) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (mmCanceled) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    onTick(now - deadline);
+                    tick(now);
+
+                    // Skip the ticks which are already over
+                    deadline += mFrameIntervalNanos;
+                    if (deadline <= now) {
+                        deadline += ((now - deadline) / mFrameIntervalNanos + 1) * mFrameIntervalNanos;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Canceled
+            }
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            interrupt();
+        }
+
+        private void tick(long now) {
+            boolean changed = false;
+            synchronized (FrameScheduler.this) {
+                if (mmVersion != mLiveVersion) {
+                    System.arraycopy(mLive, 0, mmText, 0, mLiveLength);
+                    mmLength = mLiveLength;
+                    mmBase = mLiveBase;
+                    mmVersion = mLiveVersion;
+                    changed = true;
+                }
+                if (mFirstUnseenAt != 0) {
+                    if (mmPendingSince == 0) {
+                        mmPendingSince = mFirstUnseenAt;
+                    }
+                    mFirstUnseenAt = 0;
+                }
+            }
+            int liveEnd = mmBase + mmLength;
+            if (!changed && mmShownEnd == liveEnd) {
+                return;
+            }
+
+            boolean catchUp = mmPendingSince != 0
+                    && now + mFrameIntervalNanos - mmPendingSince > mLatencyBudgetNanos;
+            if (!changed && !catchUp && now < mmBlockedUntil) {
+                // Same text, and the screen already went as far as it may
+                return;
+            }
+
+            int end;
+            if (mmShownEnd < 0 || mmShownEnd >= liveEnd
+                    || (mmBase > 0 && mmShownEnd - TickerLayout.SCAN_LIMIT < mmBase)) {
+                // Nothing to pace: the first frame, text removed, or too far behind
+                end = liveEnd;
+                catchUp = false;
+                mmBlockedUntil = 0;
+            } else if (catchUp) {
+                end = liveEnd;
+                mmBlockedUntil = 0;
+            } else {
+                end = step(liveEnd, now);
+            }
+            if (!changed && end == mmShownEnd) {
+                // Still waiting for text which scrolls a single line
+                return;
+            }
+
+            render(end);
+            mmShownEnd = end;
+            mmShownLineCount = mmLayout.getLineCount();
+            mmShownTop = mmShownLineCount > 0 ? mmRenderBase + mmLayout.getLineOffset(0) : end;
+            mmShownSecond = mmShownLineCount > 1 ? mmRenderBase + mmLayout.getLineOffset(1) : mmShownTop;
+            mmListener.onFrame(mmLayout);
+
+            if (end == liveEnd && mmPendingSince != 0) {
+                onShown(now - mmPendingSince, catchUp);
+                mmPendingSince = 0;
+            }
+        }
+
+        /**
+         * Return where the text shown next ends: as far as the screen keeps its
+         * top line, or one line further if the dwell time is over.
+         */
+        private int step(int liveEnd, long now) {
+            int noScroll = mmShownEnd;
+            int oneLine = -1;
+            for (int stop = nextStop(mmShownEnd, liveEnd); stop > 0; stop = nextStop(stop, liveEnd)) {
+                render(stop);
+                int top = mmLayout.getLineCount() > 0 ? mmRenderBase + mmLayout.getLineOffset(0) : stop;
+                if (top <= mmShownTop) {
+                    noScroll = stop;
+                } else if (mmShownLineCount > 1 && top <= mmShownSecond) {
+                    oneLine = stop;
+                } else {
+                    break;
+                }
+            }
+            if (oneLine > 0 && now - mmLastScrollAt >= mMinDwellNanos) {
+                mmLastScrollAt = now;
+                mmBlockedUntil = 0;
+                return oneLine;
+            }
+            // Until the text changes, the screen can only move once the dwell
+            // time is over, or with a catch-up if it would scroll several lines
+            mmBlockedUntil = oneLine > 0 ? mmLastScrollAt + mMinDwellNanos : Long.MAX_VALUE;
+            return noScroll;
+        }
+
+        /**
+         * Return the next place the shown text may end after the given one: the
+         * end of a word, the live end, or a line length further.
+         *
+         * @return The offset, -1 if the live end was reached
+         */
+        private int nextStop(int from, int liveEnd) {
+            if (from >= liveEnd) {
+                return -1;
+            }
+            int limit = Math.min(liveEnd, from + TickerLayout.LINE_LENGTH);
+            for (int p = from + 1; p < limit; p++) {
+                if (Character.isWhitespace(charAt(p)) && !Character.isWhitespace(charAt(p - 1))) {
+                    return p;
+                }
+            }
+            // Keep the surrogate pairs together
+            if (limit < liveEnd && Character.isHighSurrogate(charAt(limit - 1))) {
+                limit++;
+            }
+            return limit;
+        }
+
+        private char charAt(int offset) {
+            return mmText[offset - mmBase];
+        }
+
+        /**
+         * Lay out the live text up to the given offset
+         */
+        private void render(int end) {
+            int start = Math.max(mmBase, end - TickerLayout.SCAN_LIMIT);
+            mmLayout.setText(mmText, start - mmBase, end - start);
+            mmRenderBase = start;
+        }
+    }
+}
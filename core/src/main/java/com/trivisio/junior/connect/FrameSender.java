@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This thread runs during a connection with a device. It takes the outgoing
+ * frames from the mailbox and writes them at the rate the link sustains, so
+ * the callers never block on the output stream.
+ */
+public class FrameSender extends Thread {
+
+    /**
+     * Receives the outcome of every write, on the sender thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param frame        The written frame
+         * @param probe        Whether the frame was a probe of an idle link
+         * @param latencyNanos How long the write blocked for
+         */
+        void onFrameWritten(byte[] frame, boolean probe, long latencyNanos);
+
+        /**
+         * @param frame The frame which couldn't be written
+         * @param probe Whether the frame was a probe of an idle link
+         * @param e     The failure
+         */
+        void onFrameFailed(byte[] frame, boolean probe, IOException e);
+    }
+
+    private final FrameMailbox mMailbox;
+    private final SendRateController mRateController;
+    private final OutputStream mOutStream;
+    private final Listener mListener;
+    private volatile boolean mRunning = true;
+
+    /**
+     * {@link System#nanoTime()} of the start of the write in progress, 0 if none
+     */
+    private volatile long mWriteStartedAt;
+
+    /**
+     * @param mailbox        Source of the frames
+     * @param rateController Pacing of the writes, fed with their timing
+     * @param outStream      Stream of the link
+     * @param listener       Receiver of the write outcomes
+     */
+    public FrameSender(FrameMailbox mailbox, SendRateController rateController,
+                       OutputStream outStream, Listener listener) {
+        super("FrameSender");
+        mMailbox = mailbox;
+        mRateController = rateController;
+        mOutStream = outStream;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            byte[] frame;
+            boolean probe;
+            try {
+                // Wait for the link to catch up, newer frames replace the
+                // pending one meanwhile
+                long delay = mRateController.getSendDelayNanos(System.nanoTime());
+                if (delay > 0) {
+                    Thread.sleep(delay / 1_000_000L, (int) (delay % 1_000_000L));
+                }
+                frame = mMailbox.take();
+                probe = mMailbox.isProbeInFlight();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            mWriteStartedAt = start;
+            try {
+                mOutStream.write(frame);
+            } catch (IOException e) {
+                mWriteStartedAt = 0;
+                mMailbox.done(false);
+                mListener.onFrameFailed(frame, probe, e);
+                continue;
+            }
+            mWriteStartedAt = 0;
+            long latency = System.nanoTime() - start;
+            mRateController.onWrite(frame.length, start, latency);
+            mMailbox.done(true);
+            mListener.onFrameWritten(frame, probe, latency);
+        }
+    }
+
+    /**
+     * Return when the write in progress started, so a watchdog can tell a stalled
+     * link. A write which never returns is only aborted by closing the link.
+     *
+     * @return The {@link System#nanoTime()} of the start of the write, 0 if the
+     * sender isn't writing
+     */
+    public long getWriteStartedAt() {
+        return mWriteStartedAt;
+    }
+
+    /**
+     * Stop sending. The frame being written, if any, is finished first unless
+     * the link is closed.
+     */
+    public void cancel() {
+        mRunning = false;
+        interrupt();
+    }
+}
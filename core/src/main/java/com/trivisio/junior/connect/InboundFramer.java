@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the bytes received from the device into lines.
+ * <p>
+ * The stream is read straight into a preallocated ring buffer, so reading does
+ * not allocate. Complete lines are handed to the listener on the reading thread;
+ * a line which wraps around the end of the ring is copied into a second
+ * preallocated buffer first. A line longer than the ring is delivered in
+ * ring-sized pieces; a CRLF split by such a piece still ends the line. Not
+ * thread-safe, owned by the connection thread.
+ */
+public class InboundFramer {
+
+    // Ring size, must be a power of two
+    public static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private final byte[] mRing = new byte[CAPACITY];
+    private final byte[] mFrame = new byte[CAPACITY];
+
+    // Running byte counters, positions in the ring are the counters masked
+    private long mWritten;
+    private long mRead;
+    private long mScanned;
+
+    // Whether a flushed piece ended in a CR, which makes a following LF the end
+    // of that line rather than an empty one
+    private boolean mCrFlushed;
+
+    /**
+     * Read the next chunk of the stream into the free space of the ring. Blocks
+     * until some bytes are available.
+     *
+     * @param in The stream to read
+     * @return The number of bytes read, -1 at the end of the stream
+     * @throws IOException if the stream fails
+     */
+    public int readFrom(InputStream in) throws IOException {
+        int used = (int) (mWritten - mRead);
+        if (used == CAPACITY) {
+            throw new IllegalStateException("dispatch() or discard() must be called after readFrom()");
+        }
+        int writeIndex = (int) (mWritten & MASK);
+        int contiguous = Math.min(CAPACITY - used, CAPACITY - writeIndex);
+        int bytes = in.read(mRing, writeIndex, contiguous);
+        if (bytes > 0) {
+            mWritten += bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Deliver all the complete lines to the listener. A pending partial line stays
+     * in the ring, unless it fills the whole ring.
+     *
+     * @param listener The receiver of the lines
+     */
+    public void dispatch(InboundListener listener) {
+        while (mScanned < mWritten) {
+            byte b = mRing[(int) (mScanned & MASK)];
+            mScanned++;
+            if (mCrFlushed) {
+                mCrFlushed = false;
+                if (b == '\n') {
+                    mRead = mScanned;
+                    continue;
+                }
+            }
+            if (b == '\n') {
+                deliver(listener, mScanned - 1);
+                mRead = mScanned;
+            }
+        }
+        if (mWritten - mRead == CAPACITY) {
+            // No room left to complete the line, flush what we have
+            mCrFlushed = mRing[(int) ((mWritten - 1) & MASK)] == '\r';
+            deliver(listener, mWritten);
+            mRead = mWritten;
+        }
+    }
+
+    /**
+     * Drop all the buffered bytes, e.g. when nobody listens.
+     */
+    public void discard() {
+        mRead = mWritten;
+        mScanned = mWritten;
+        mCrFlushed = false;
+    }
+
+    private void deliver(InboundListener listener, long end) {
+        // Drop the CR of a CRLF terminator
+        if (end > mRead && mRing[(int) ((end - 1) & MASK)] == '\r') {
+            end--;
+        }
+        int length = (int) (end - mRead);
+        int start = (int) (mRead & MASK);
+        if (start + length <= CAPACITY) {
+            listener.onInboundFrame(mRing, start, length);
+        } else {
+            int head = CAPACITY - start;
+            System.arraycopy(mRing, start, mFrame, 0, head);
+            System.arraycopy(mRing, 0, mFrame, head, length - head);
+            listener.onInboundFrame(mFrame, 0, length);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Subscriber for the data received from the connected device.
+ */
+public interface InboundListener {
+
+    /**
+     * Called on the connection thread for every line received from the device,
+     * without the line terminator. The buffer is reused after the call returns,
+     * so the bytes must be copied if they are needed later. A slow listener holds
+     * the reading of the connection back.
+     *
+     * @param buffer Buffer holding the line
+     * @param offset Start of the line in the buffer
+     * @param length Length of the line
+     */
+    void onInboundFrame(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.util.Random;
+
+/**
+ * Timing of the automatic reconnect attempts: jittered exponential backoff with
+ * a limit on the number of attempts and on the total time spent reconnecting.
+ */
+public class ReconnectPolicy {
+
+    /**
+     * Start at half a second, back off up to 30 seconds, give up after 5 minutes
+     */
+    public static final ReconnectPolicy DEFAULT =
+            new ReconnectPolicy(500, 30_000, 2.0, 0.5, 0, 5 * 60_000);
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final long mGiveUpAfterMs;
+
+    /**
+     * @param initialDelayMs Delay before the first attempt
+     * @param maxDelayMs     Upper bound of the delay between attempts
+     * @param multiplier     Growth of the delay after every failed attempt
+     * @param jitter         Share of the delay which is randomized, 0..1
+     * @param maxAttempts    Number of attempts before giving up, 0 for no limit
+     * @param giveUpAfterMs  Time since the link was lost after which no attempt
+     *                       is made, 0 for no limit
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, double multiplier,
+                           double jitter, int maxAttempts, long giveUpAfterMs) {
+        if (initialDelayMs < 0 || maxDelayMs < initialDelayMs || multiplier < 1
+                || jitter < 0 || jitter > 1 || maxAttempts < 0 || giveUpAfterMs < 0) {
+            throw new IllegalArgumentException("invalid reconnect policy");
+        }
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+        mGiveUpAfterMs = giveUpAfterMs;
+    }
+
+    /**
+     * Return the delay before the given attempt.
+     *
+     * @param attempt   Number of the attempt, starting with 1
+     * @param elapsedMs Time since the link was lost
+     * @param random    Source of the jitter
+     * @return The delay in milliseconds, -1 to give up
+     */
+    public long getDelayMs(int attempt, long elapsedMs, Random random) {
+        if (mMaxAttempts > 0 && attempt > mMaxAttempts) {
+            return -1;
+        }
+        double delay = mInitialDelayMs * Math.pow(mMultiplier, attempt - 1);
+        delay = Math.min(delay, mMaxDelayMs);
+        delay -= delay * mJitter * random.nextDouble();
+        if (mGiveUpAfterMs > 0 && elapsedMs + (long) delay > mGiveUpAfterMs) {
+            return -1;
+        }
+        return (long) delay;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a timestamped transcript as a {@link TextSource}, in real time or
+ * faster, so the text pipeline can be exercised without a recognizer.
+ * <p>
+ * Every line of the transcript is one result: the offset from the start in
+ * milliseconds, {@code P} for a partial or {@code F} for a final result and the
+ * text, separated by tabs. Empty lines and lines starting with {@code #} are
+ * skipped.
+ * <pre>
+ * 0	P	the
+ * 180	P	the quick
+ * 420	F	the quick brown fox
+ * </pre>
+ */
+public class ReplayTextSource implements TextSource {
+
+    private final Reader mReader;
+    private final double mSpeed;
+    private ReplayThread mThread;
+
+    /**
+     * @param reader The transcript, closed when the replay ends
+     * @param speed  Playback speed, 1 for real time, infinite for no pauses
+     */
+    public ReplayTextSource(Reader reader, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        mReader = reader;
+        mSpeed = speed;
+    }
+
+    /**
+     * Open a transcript file, encoded in UTF-8.
+     *
+     * @param file  The transcript file
+     * @param speed Playback speed, 1 for real time, infinite for no pauses
+     * @throws IOException if the file can't be opened
+     */
+    public static ReplayTextSource open(File file, double speed) throws IOException {
+        return new ReplayTextSource(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8), speed);
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new ReplayThread(listener);
+        mThread.start();
+    }
+
+    @Override
+    public void stop() {
+        ReplayThread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.cancel();
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class ReplayThread extends Thread {
+        private final Listener mmListener;
+        private volatile boolean mmCanceled;
+
+        ReplayThread(Listener listener) {
+            super("ReplayTextSource");
+            mmListener = listener;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try (BufferedReader in = new BufferedReader(mReader)) {
+                String line;
+                int lineNumber = 0;
+                while (!mmCanceled && (line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isEmpty() || line.charAt(0) == '#') {
+                        continue;
+                    }
+                    int first = line.indexOf('\t');
+                    int second = first < 0 ? -1 : line.indexOf('\t', first + 1);
+                    if (second != first + 2
+                            || (line.charAt(first + 1) != 'P' && line.charAt(first + 1) != 'F')) {
+                        throw new IOException("line " + lineNumber + ": expected <ms>\\t<P|F>\\t<text>");
+                    }
+                    long offsetMs;
+                    try {
+                        offsetMs = Long.parseLong(line.substring(0, first));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("line " + lineNumber + ": bad offset", e);
+                    }
+
+                    // Wait for the time of the result, scaled by the speed
+                    long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(offsetMs) / mSpeed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (mmCanceled) {
+                        return;
+                    }
+
+                    String text = line.substring(second + 1);
+                    if (line.charAt(first + 1) == 'P') {
+                        mmListener.onPartialResult(text);
+                    } else {
+                        mmListener.onFinalResult(text);
+                    }
+                }
+                if (!mmCanceled) {
+                    mmListener.onEnd();
+                }
+            } catch (InterruptedException e) {
+                // Canceled
+            } catch (IOException e) {
+                if (!mmCanceled) {
+                    mmListener.onFailed(e);
+                }
+            }
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and write latency histogram of the send path.
+ * <p>
+ * Recording is a few atomic increments and never allocates, so the metrics stay
+ * on in production builds. The histogram has a fixed number of log-linear
+ * buckets: four per power of two of microseconds, i.e. within 25% of the value.
+ */
+public class SendMetrics {
+
+    // Sub-buckets per power of two
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Up to 2^40 us, latencies above land in the last bucket
+    private static final int BUCKET_COUNT = 40 * SUB_BUCKETS;
+
+    private final AtomicLong mRequested = new AtomicLong();
+    private final AtomicLong mUnchanged = new AtomicLong();
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mMaxLatencyUs = new AtomicLong();
+    private final AtomicLongArray mLatency = new AtomicLongArray(BUCKET_COUNT);
+
+    // Counters of the mailboxes of the removed connections
+    private final AtomicLong mClosedSent = new AtomicLong();
+    private final AtomicLong mClosedSuperseded = new AtomicLong();
+    private final AtomicLong mClosedDropped = new AtomicLong();
+
+    /**
+     * Count a frame the UI asked to send.
+     */
+    public void onFrameRequested() {
+        mRequested.incrementAndGet();
+    }
+
+    /**
+     * Count a requested frame which wasn't sent because the text didn't change.
+     */
+    public void onFrameUnchanged() {
+        mUnchanged.incrementAndGet();
+    }
+
+    /**
+     * Count a frame written to a device.
+     *
+     * @param bytes       The frame size
+     * @param latencyNano Time the write blocked for
+     */
+    public void onFrameWritten(int bytes, long latencyNano) {
+        mWritten.incrementAndGet();
+        mBytes.addAndGet(bytes);
+        long latencyUs = latencyNano / 1000L;
+        mLatency.incrementAndGet(bucketOf(latencyUs));
+        long max = mMaxLatencyUs.get();
+        while (latencyUs > max && !mMaxLatencyUs.compareAndSet(max, latencyUs)) {
+            max = mMaxLatencyUs.get();
+        }
+    }
+
+    /**
+     * Count a frame which failed to be written.
+     */
+    public void onWriteFailed() {
+        mFailed.incrementAndGet();
+    }
+
+    /**
+     * Keep the counters of the mailbox of a removed connection, so the totals
+     * don't go down with it.
+     */
+    public void onMailboxClosed(FrameMailbox mailbox) {
+        mClosedSent.addAndGet(mailbox.getSentCount());
+        mClosedSuperseded.addAndGet(mailbox.getSupersededCount());
+        mClosedDropped.addAndGet(mailbox.getDroppedCount());
+    }
+
+    /**
+     * @return The frames sent through the mailboxes of the removed connections
+     */
+    public long getClosedSentCount() {
+        return mClosedSent.get();
+    }
+
+    /**
+     * @return The frames superseded in the mailboxes of the removed connections
+     */
+    public long getClosedSupersededCount() {
+        return mClosedSuperseded.get();
+    }
+
+    /**
+     * @return The frames dropped by the mailboxes of the removed connections
+     */
+    public long getClosedDroppedCount() {
+        return mClosedDropped.get();
+    }
+
+    /**
+     * Return the write latency below which the given share of the writes fall,
+     * in microseconds, rounded up to the bucket bound. 0 if nothing was written.
+     *
+     * @param percentile The percentile, 0..1
+     */
+    public long getLatencyPercentileUs(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mLatency.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxLatencyUs.get());
+            }
+        }
+        return mMaxLatencyUs.get();
+    }
+
+    /**
+     * Take a consistent enough copy of the metrics for display or export.
+     *
+     * @param superseded Ticker frames replaced before being sent
+     * @param dropped    Frames which couldn't be sent
+     */
+    public Snapshot snapshot(long superseded, long dropped) {
+        return new Snapshot(mRequested.get(), mUnchanged.get(), mWritten.get(), mFailed.get(),
+                superseded, dropped, mBytes.get(),
+                getLatencyPercentileUs(0.5), getLatencyPercentileUs(0.95),
+                getLatencyPercentileUs(0.99), mMaxLatencyUs.get());
+    }
+
+    private static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        int sub = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int bucket = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Point-in-time copy of the send path metrics.
+     */
+    public static class Snapshot {
+        public final long framesRequested;
+        public final long framesUnchanged;
+        public final long framesWritten;
+        public final long framesFailed;
+        public final long framesSuperseded;
+        public final long framesDropped;
+        public final long bytesWritten;
+        public final long latencyP50Us;
+        public final long latencyP95Us;
+        public final long latencyP99Us;
+        public final long latencyMaxUs;
+
+        public Snapshot(long framesRequested, long framesUnchanged, long framesWritten,
+                        long framesFailed, long framesSuperseded, long framesDropped,
+                        long bytesWritten, long latencyP50Us, long latencyP95Us,
+                        long latencyP99Us, long latencyMaxUs) {
+            this.framesRequested = framesRequested;
+            this.framesUnchanged = framesUnchanged;
+            this.framesWritten = framesWritten;
+            this.framesFailed = framesFailed;
+            this.framesSuperseded = framesSuperseded;
+            this.framesDropped = framesDropped;
+            this.bytesWritten = bytesWritten;
+            this.latencyP50Us = latencyP50Us;
+            this.latencyP95Us = latencyP95Us;
+            this.latencyP99Us = latencyP99Us;
+            this.latencyMaxUs = latencyMaxUs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "requested %d, unchanged %d\n"
+                            + "written %d (%d bytes), failed %d\n"
+                            + "superseded %d, dropped %d\n"
+                            + "write p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    framesRequested, framesUnchanged, framesWritten, bytesWritten, framesFailed,
+                    framesSuperseded, framesDropped, latencyP50Us / 1000.0,
+                    latencyP95Us / 1000.0, latencyP99Us / 1000.0, latencyMaxUs / 1000.0);
+        }
+    }
+}
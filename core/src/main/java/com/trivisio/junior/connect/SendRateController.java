@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Paces the outgoing frames to the rate the link can sustain.
+ * <p>
+ * Every write is timed. A write into a congested RFCOMM socket blocks until the
+ * link drains the socket buffer, so the moving averages of the frame size and of
+ * the write latency give an estimate of the link capacity. The target frame
+ * rate grows additively while writes are fast and is cut multiplicatively when a
+ * write takes longer than the latency budget, so the backlog in the socket stays
+ * short. The frames produced in between are coalesced by the {@link FrameMailbox}.
+ * <p>
+ * All times are taken from the monotonic {@link System#nanoTime()} clock.
+ */
+public class SendRateController {
+
+    // Frame rate limits, frames per second
+    public static final double MAX_FRAME_RATE = 20.0;
+    public static final double MIN_FRAME_RATE = 0.5;
+
+    // A write slower than this means the socket buffer is backing up
+    private static final long LATENCY_BUDGET_NS = 100_000_000L;
+
+    // Rate cut applied on a slow write
+    private static final double DECREASE_FACTOR = 0.7;
+
+    // Share of the estimated capacity the frames may use
+    private static final double CAPACITY_HEADROOM = 0.8;
+
+    // Weight of a new sample in the moving averages
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private double mTargetRate = MAX_FRAME_RATE;
+    private double mFrameSize;     // bytes, 0 if unknown
+    private double mWriteLatency;  // nanoseconds
+    private long mLastWriteStart;
+    private boolean mHasWrites;
+
+    /**
+     * Forget the link estimate, e.g. when a new connection is made.
+     */
+    public synchronized void reset() {
+        mTargetRate = MAX_FRAME_RATE;
+        mFrameSize = 0;
+        mWriteLatency = 0;
+        mHasWrites = false;
+    }
+
+    /**
+     * Return how long to wait before the next write may start.
+     *
+     * @param now Current {@link System#nanoTime()}
+     * @return The delay in nanoseconds, 0 if the write may start right away
+     */
+    public synchronized long getSendDelayNanos(long now) {
+        if (!mHasWrites) {
+            return 0;
+        }
+        long interval = (long) (1_000_000_000L / mTargetRate);
+        return Math.max(0, mLastWriteStart + interval - now);
+    }
+
+    /**
+     * Account a finished write.
+     *
+     * @param bytes      Size of the written frame
+     * @param startNanos {@link System#nanoTime()} when the write started
+     * @param latencyNs  How long the write took
+     */
+    public synchronized void onWrite(int bytes, long startNanos, long latencyNs) {
+        mLastWriteStart = startNanos;
+        long sampleLatency = Math.max(latencyNs, 1);
+        if (mHasWrites) {
+            mFrameSize += EWMA_WEIGHT * (bytes - mFrameSize);
+            mWriteLatency += EWMA_WEIGHT * (sampleLatency - mWriteLatency);
+        } else {
+            mFrameSize = bytes;
+            mWriteLatency = sampleLatency;
+            mHasWrites = true;
+        }
+
+        double rate;
+        if (latencyNs > LATENCY_BUDGET_NS) {
+            rate = mTargetRate * DECREASE_FACTOR;
+        } else {
+            // About one frame per second more for every second of fast writes
+            rate = mTargetRate + 1.0 / mTargetRate;
+        }
+        if (mFrameSize > 0) {
+            rate = Math.min(rate, getEstimatedCapacity() * CAPACITY_HEADROOM / mFrameSize);
+        }
+        mTargetRate = Math.max(MIN_FRAME_RATE, Math.min(MAX_FRAME_RATE, rate));
+    }
+
+    /**
+     * @return The current target rate, frames per second
+     */
+    public synchronized double getTargetFrameRate() {
+        return mTargetRate;
+    }
+
+    /**
+     * @return The estimated link capacity, bytes per second, 0 if nothing was written yet
+     */
+    public synchronized double getEstimatedCapacity() {
+        if (!mHasWrites) {
+            return 0;
+        }
+        return mFrameSize * 1_000_000_000.0 / mWriteLatency;
+    }
+
+    /**
+     * @return The average write latency, nanoseconds
+     */
+    public synchronized long getAverageWriteLatencyNanos() {
+        return (long) mWriteLatency;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a session log back with its original timing, faster, or as fast as the
+ * listener takes the frames.
+ *
+ * @see SessionRecorder
+ */
+public class SessionPlayer {
+
+    public interface Listener {
+        /**
+         * A frame is due. Called on the thread of the player.
+         *
+         * @param type  A SessionRecorder TYPE_ constant
+         * @param frame The bytes of the frame, a new array for every frame
+         */
+        void onFrame(int type, byte[] frame);
+
+        /**
+         * The whole session was played.
+         */
+        void onEnd();
+
+        /**
+         * The log couldn't be read.
+         *
+         * @param e The failure
+         */
+        void onFailed(IOException e);
+    }
+
+    private final File mFile;
+    private final double mSpeed;
+    private PlayerThread mThread;
+
+    /**
+     * @param file  The session log
+     * @param speed Playback speed, 1 for the original timing, infinite for no pauses
+     */
+    public SessionPlayer(File file, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        mFile = file;
+        mSpeed = speed;
+    }
+
+    /**
+     * Start playing the session on a new thread.
+     *
+     * @param listener The receiver of the frames
+     */
+    public synchronized void start(Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new PlayerThread(listener);
+        mThread.start();
+    }
+
+    /**
+     * Stop playing. No callbacks follow once it returns.
+     */
+    public void stop() {
+        PlayerThread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.cancel();
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class PlayerThread extends Thread {
+        private final Listener mmListener;
+        private volatile boolean mmCanceled;
+
+        PlayerThread(Listener listener) {
+            super("SessionPlayer");
+            mmListener = listener;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try (SessionReader reader = new SessionReader(mFile)) {
+                while (!mmCanceled && reader.next()) {
+                    // Wait for the time of the frame, scaled by the speed
+                    long due = start + (long) (reader.getTimestampNanos() / mSpeed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (mmCanceled) {
+                        return;
+                    }
+                    mmListener.onFrame(reader.getType(), reader.getFrame());
+                }
+                if (!mmCanceled) {
+                    mmListener.onEnd();
+                }
+            } catch (InterruptedException e) {
+                // Canceled
+            } catch (IOException e) {
+                if (!mmCanceled) {
+                    mmListener.onFailed(e);
+                }
+            }
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a log written by the {@link SessionRecorder}, one record at a time.
+ * <p>
+ * Stops at the end of the last complete record, so the log of a session which
+ * didn't close properly can be read as well.
+ */
+public class SessionReader implements Closeable {
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+    private final long mStartTimeMillis;
+
+    // The current record
+    private long mTimestampNanos;
+    private int mType;
+    private byte[] mFrame;
+
+    /**
+     * @param file The log file
+     * @throws IOException if the file can't be read or isn't a session log
+     */
+    public SessionReader(File file) throws IOException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = mChannel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < SessionRecorder.HEADER_SIZE || mBuffer.getInt() != SessionRecorder.MAGIC) {
+                throw new IOException(file + " is not a session log");
+            }
+            int version = mBuffer.getInt();
+            if (version != SessionRecorder.VERSION) {
+                throw new IOException(file + " has the unknown version " + version);
+            }
+            mStartTimeMillis = mBuffer.getLong();
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The wall clock time the session started at, in milliseconds
+     */
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false at the end of the log
+     */
+    public boolean next() {
+        if (mBuffer.remaining() < SessionRecorder.RECORD_HEADER_SIZE) {
+            return false;
+        }
+        int position = mBuffer.position();
+        int length = mBuffer.getInt();
+        if (length <= 0 || mBuffer.remaining() < length + SessionRecorder.RECORD_HEADER_SIZE - 4) {
+            // The unwritten rest of a window, or a cut record
+            mBuffer.position(position);
+            return false;
+        }
+        mTimestampNanos = mBuffer.getLong();
+        mType = mBuffer.get();
+        mFrame = new byte[length];
+        mBuffer.get(mFrame);
+        return true;
+    }
+
+    /**
+     * @return The time of the current record since the start of the session
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * @return The type of the current record, a SessionRecorder TYPE_ constant
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return The bytes of the current record, a new array for every record
+     */
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the frames of a session to an append-only log.
+ * <p>
+ * The log is written through a memory-mapped window of the file, so appending a
+ * frame is a memory copy and the caller never waits for the disk; the window is
+ * only remapped once per {@link #WINDOW_SIZE} bytes. The file starts with a
+ * header: the magic, the version and the wall clock time of the start. Then
+ * every frame is a record: its length, the monotonic time since the start in
+ * nanoseconds, its type and its bytes. The length of a record is stored last,
+ * so a log cut short by a crash ends at the last complete record.
+ *
+ * @see SessionReader
+ */
+public class SessionRecorder implements Closeable {
+
+    // Frame types
+    public static final int TYPE_TICKER = 0;
+    public static final int TYPE_CONTROL = 1;
+
+    static final int MAGIC = 0x4A544B53; // "JTKS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8;
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 1;
+
+    // Size of the mapped window of the file
+    static final int WINDOW_SIZE = 1 << 20;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final long mStartNanos;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mRecordCount;
+    private boolean mClosed;
+
+    /**
+     * Start a new log, replacing the file if it exists.
+     *
+     * @param file The log file
+     * @throws IOException if the file can't be created
+     */
+    public SessionRecorder(File file) throws IOException {
+        mFile = file;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        mStartNanos = System.nanoTime();
+        try {
+            map(0, HEADER_SIZE);
+            mWindow.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a frame, time stamped now. Empty frames are skipped.
+     *
+     * @param type  {@link #TYPE_TICKER} or {@link #TYPE_CONTROL}
+     * @param frame The bytes of the frame
+     * @throws IOException if the file can't grow
+     */
+    public void append(int type, byte[] frame) throws IOException {
+        append(type, frame, System.nanoTime());
+    }
+
+    /**
+     * Append a frame which was queued earlier, e.g. by a background writer.
+     * Empty frames are skipped.
+     *
+     * @param type      {@link #TYPE_TICKER} or {@link #TYPE_CONTROL}
+     * @param frame     The bytes of the frame
+     * @param timeNanos The {@link System#nanoTime()} of the frame
+     * @throws IOException if the file can't grow
+     */
+    public synchronized void append(int type, byte[] frame, long timeNanos) throws IOException {
+        if (mClosed || frame.length == 0) {
+            // An empty record would end the log
+            return;
+        }
+        long timestamp = Math.max(0, timeNanos - mStartNanos);
+        int size = RECORD_HEADER_SIZE + frame.length;
+        if (mWindow.remaining() < size) {
+            map(mWindowStart + mWindow.position(), size);
+        }
+
+        // Body first, the length makes the record visible
+        int position = mWindow.position();
+        mWindow.position(position + 4);
+        mWindow.putLong(timestamp).put((byte) type).put(frame);
+        mWindow.putInt(position, frame.length);
+        mRecordCount++;
+    }
+
+    /**
+     * @return The number of frames recorded
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return The log file
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Stop recording and cut the file to the recorded length.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mWindow.force();
+            mChannel.truncate(mWindowStart + mWindow.position());
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void map(long position, int minSize) throws IOException {
+        mWindowStart = position;
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                Math.max(WINDOW_SIZE, minSize));
+        mWindow.order(ByteOrder.BIG_ENDIAN);
+    }
+}
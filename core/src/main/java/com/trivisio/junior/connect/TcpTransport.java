@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * {@link Transport} over a TCP socket, a stand-in for the RFCOMM link when there
+ * is no Bluetooth, e.g. a loopback receiver in a benchmark.
+ */
+public class TcpTransport implements Transport {
+
+    // Give up connecting after this long, like an RFCOMM page timeout
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final InetSocketAddress mAddress;
+    private final Socket mSocket = new Socket();
+
+    /**
+     * @param host The host name or address of the receiver
+     * @param port The TCP port of the receiver
+     */
+    public TcpTransport(String host, int port) {
+        mAddress = new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // Frames are small and latency matters more than packet count
+        mSocket.setTcpNoDelay(true);
+        mSocket.connect(mAddress, CONNECT_TIMEOUT_MS);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
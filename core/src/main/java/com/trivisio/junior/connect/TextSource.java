@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+/**
+ * A source of recognized text, e.g. a speech recognizer.
+ * <p>
+ * The source reports hypotheses of the utterance in progress. A partial
+ * hypothesis is unstable and replaces the previous partial one; a final
+ * hypothesis replaces it for good and ends the utterance. The callbacks come
+ * on a thread of the source.
+ */
+public interface TextSource {
+
+    interface Listener {
+        /**
+         * @param text The current hypothesis of the utterance in progress
+         */
+        void onPartialResult(CharSequence text);
+
+        /**
+         * @param text The final text of the utterance in progress
+         */
+        void onFinalResult(CharSequence text);
+
+        /**
+         * The source has no more text.
+         */
+        void onEnd();
+
+        /**
+         * The source failed and won't report more text.
+         *
+         * @param e The failure
+         */
+        void onFailed(Exception e);
+    }
+
+    /**
+     * Start reporting text to the listener.
+     *
+     * @param listener The receiver of the hypotheses
+     */
+    void start(Listener listener);
+
+    /**
+     * Stop reporting text. No callbacks follow once it returns.
+     */
+    void stop();
+}
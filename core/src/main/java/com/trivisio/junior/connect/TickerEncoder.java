@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.util.Arrays;
+
+/**
+ * Turns the ticker frames into the bytes sent to the Junior.
+ * <p>
+ * Given a {@link DeviceCharset}, the frame is first mapped to the glyphs of the
+ * device, line by line. A fallback of several glyphs, like "EUR" for the euro
+ * sign, is used while its line keeps within the width the layout broke it at;
+ * otherwise the symbol shows as the replacement.
+ * <p>
+ * The frame is encoded as UTF-8 into a reusable buffer, so an edit which doesn't
+ * change the bytes on the wire creates no garbage. Only a changed frame is
+ * copied out, since it is queued for the device and must outlive the call.
+ * A changed frame is told apart by a 64-bit FNV-1a fingerprint, confirmed
+ * against the last frame bytes. Not thread-safe.
+ */
+public class TickerEncoder {
+
+    // FNV-1a 64-bit parameters
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final DeviceCharset mCharset;
+
+    private final char[] mChars = new char[TickerLayout.MAX_FRAME_LENGTH];
+    private final char[] mGlyphs;
+
+    // A char takes up to 3 bytes, a surrogate pair 4 bytes for 2 chars
+    private final byte[] mBuffer = new byte[TickerLayout.MAX_FRAME_LENGTH * 3];
+
+    /**
+     * Last returned frame and its fingerprint, null if there is none
+     */
+    private byte[] mLastFrame;
+    private long mLastFingerprint;
+
+    /**
+     * An encoder sending the frames as they are
+     */
+    public TickerEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param charset The symbols of the device the frames are mapped to, null
+     *                to send the frames as they are
+     */
+    public TickerEncoder(DeviceCharset charset) {
+        mCharset = charset;
+        mGlyphs = charset != null ? new char[TickerLayout.MAX_FRAME_LENGTH] : null;
+    }
+
+    /**
+     * Encode the current frame of the layout.
+     *
+     * @param layout The layout fed with the edits
+     * @return The UTF-8 bytes of the frame, null if they are the same as the
+     * bytes returned last time
+     */
+    public byte[] encodeIfChanged(TickerLayout layout) {
+        int length = layout.getFrame(mChars);
+        if (mCharset != null) {
+            length = encode(mGlyphs, toGlyphs(mChars, length, mGlyphs), mBuffer);
+        } else {
+            length = encode(mChars, length, mBuffer);
+        }
+        long fingerprint = fingerprint(mBuffer, length);
+        if (mLastFrame != null && fingerprint == mLastFingerprint
+                && mLastFrame.length == length && equals(mLastFrame, mBuffer, length)) {
+            return null;
+        }
+        mLastFrame = Arrays.copyOf(mBuffer, length);
+        mLastFingerprint = fingerprint;
+        return mLastFrame;
+    }
+
+    /**
+     * Forget the last frame, so the next one is returned even if it's the same,
+     * e.g. after the device was disconnected.
+     */
+    public void reset() {
+        mLastFrame = null;
+    }
+
+    /**
+     * Map a frame to the glyphs of the device, keeping every line within
+     * {@link TickerLayout#LINE_LENGTH}.
+     *
+     * @return The length of the mapped frame
+     */
+    private int toGlyphs(char[] frame, int length, char[] dest) {
+        int out = 0;
+        int lineStart = 0;
+        while (lineStart < length) {
+            // Room left for the extra glyphs of the fallbacks
+            int lineEnd = lineStart;
+            int spare = TickerLayout.LINE_LENGTH;
+            for (; lineEnd < length && frame[lineEnd] != '\n'; lineEnd++) {
+                if (mCharset.getGlyphCount(frame[lineEnd]) > 0) {
+                    spare--;
+                }
+            }
+            for (int i = lineStart; i < lineEnd; i++) {
+                int extra = mCharset.getGlyphCount(frame[i]) - 1;
+                if (extra <= spare) {
+                    spare -= Math.max(0, extra);
+                    out += mCharset.getGlyphs(frame[i], dest, out);
+                } else {
+                    dest[out++] = DeviceCharset.REPLACEMENT;
+                }
+            }
+            if (lineEnd < length) {
+                dest[out++] = '\n';
+            }
+            lineStart = lineEnd + 1;
+        }
+        return out;
+    }
+
+    /**
+     * Encode chars as UTF-8 the way {@code String.getBytes(UTF_8)} does, unpaired
+     * surrogates become '?'.
+     *
+     * @return The number of bytes written
+     */
+    static int encode(char[] chars, int length, byte[] dest) {
+        int out = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                dest[out++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[out++] = (byte) (0xC0 | (c >> 6));
+                dest[out++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(chars[i + 1])) {
+                    int cp = Character.toCodePoint(c, chars[++i]);
+                    dest[out++] = (byte) (0xF0 | (cp >> 18));
+                    dest[out++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dest[out++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dest[out++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    dest[out++] = '?';
+                }
+            } else {
+                dest[out++] = (byte) (0xE0 | (c >> 12));
+                dest[out++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dest[out++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return out;
+    }
+
+    private static long fingerprint(byte[] bytes, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < length; i++) {
+            hash ^= bytes[i] & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
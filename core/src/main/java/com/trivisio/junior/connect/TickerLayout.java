@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Stateful layout engine for the Junior ticker screen (6 lines by 20 symbols).
+ * <p>
+ * The engine mirrors the text being edited and is fed with the individual edits
+ * (appends, inserts, backspaces) instead of the whole text. The frame is wrapped
+ * backwards from the end of the text, so only the last words that can reach the
+ * screen are ever looked at. Edits that land before the part of the text the
+ * current frame depends on keep the cached frame as is.
+ * <p>
+ * Words are separated by whitespace runs and are wrapped greedily from the end:
+ * the last line takes as many trailing words as fit into 20 symbols, the line
+ * above takes the words before them and so on. Lines shorter than 20 symbols are
+ * terminated with a line break, full lines are wrapped by the device itself.
+ * <p>
+ * Scripts written without spaces may also break between their symbols: a line
+ * may break before or after a CJK ideograph or kana, unless punctuation which
+ * can't start or end a line sticks to it. Such breaks don't add a space. A token
+ * with no break opportunity within 20 symbols, like a URL, is broken hard into
+ * full lines from its start, or from its end if it is longer than the screen.
+ * <p>
+ * A render looks at no more than {@link #SCAN_LIMIT} symbols from the end of
+ * the text and at no more non-space symbols than fit on two screens, so its
+ * time is bounded whatever the text is.
+ */
+public class TickerLayout {
+
+    // Junior screen size
+    public static final int LINE_LENGTH = 20;
+    public static final int NUMBER_OF_LINES = 6;
+
+    // Upper bound of the frame length: full lines plus the line breaks
+    public static final int MAX_FRAME_LENGTH = NUMBER_OF_LINES * (LINE_LENGTH + 1);
+
+    /**
+     * Text further from the end is never looked at. Only reached behind huge
+     * whitespace runs, ordinary text fills the screen much earlier.
+     */
+    public static final int SCAN_LIMIT = 4096;
+
+    // Punctuation which can't start a line, and which can't end one
+    private static final String NO_BREAK_BEFORE = "!%),.:;?]}\u00A2\u00B0\u2019\u201D\u2030\u2032\u2033\u2103"
+            + "\u3001\u3002\u3009\u300B\u300D\u300F\u3011\u3015\u3017\u3019\u301F"
+            + "\u3005\u303B\u309D\u309E\u30FB\u30FC\u30FD\u30FE"
+            + "\u3041\u3043\u3045\u3047\u3049\u3063\u3083\u3085\u3087\u308E\u3095\u3096"
+            + "\u30A1\u30A3\u30A5\u30A7\u30A9\u30C3\u30E3\u30E5\u30E7\u30EE\u30F5\u30F6"
+            + "\uFF01\uFF05\uFF09\uFF0C\uFF0E\uFF1A\uFF1B\uFF1F\uFF3D\uFF5D"
+            + "\uFF61\uFF63\uFF64\uFF65\uFF67\uFF68\uFF69\uFF6A\uFF6B\uFF6C\uFF6D\uFF6E\uFF6F\uFF70";
+    private static final String NO_BREAK_AFTER = "$([{\u00A3\u00A5\u2018\u201C"
+            + "\u3008\u300A\u300C\u300E\u3010\u3014\u3016\u3018\u301D"
+            + "\uFF04\uFF08\uFF3B\uFF5B\uFF62";
+
+    /**
+     * Mirror of the edited text
+     */
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * Lines of the current frame, filled from the right and stored bottom-up
+     */
+    private final char[][] mLines = new char[NUMBER_OF_LINES][LINE_LENGTH];
+    private final int[] mLineStarts = new int[NUMBER_OF_LINES];
+
+    /**
+     * Text offsets of the first symbols of the frame lines, stored bottom-up
+     */
+    private final int[] mLineOffsets = new int[NUMBER_OF_LINES];
+    private int mLineCount;
+
+    /**
+     * Frame rendering buffer: 6 lines plus 5 line breaks at most
+     */
+    private final char[] mFrameChars = new char[MAX_FRAME_LENGTH];
+    private int mFrameLength;
+
+    /**
+     * The frame as a String, created on demand
+     */
+    private String mFrame = "";
+    private boolean mDirty = false;
+
+    /**
+     * Offset of the first text symbol the current frame depends on. Edits ending
+     * before this offset can't change the frame.
+     */
+    private int mDependencyStart = 0;
+
+    /**
+     * Number of symbols from the end of the text the last render looked at
+     */
+    private int mScanLength = 0;
+
+    /**
+     * Replace the whole text.
+     *
+     * @param text The new text
+     */
+    public void setText(CharSequence text) {
+        mText.setLength(0);
+        mText.append(text);
+        mDirty = true;
+    }
+
+    /**
+     * Replace the whole text with a range of chars, without wrapping them.
+     *
+     * @param text   Source of the new text
+     * @param start  Start of the new text in the source
+     * @param length Length of the new text
+     */
+    public void setText(char[] text, int start, int length) {
+        mText.setLength(0);
+        mText.append(text, start, length);
+        mDirty = true;
+    }
+
+    /**
+     * Clear the text and the frame.
+     */
+    public void clear() {
+        mText.setLength(0);
+        mDirty = true;
+    }
+
+    /**
+     * Append text to the end.
+     *
+     * @param text The text to append
+     */
+    public void append(CharSequence text) {
+        replace(mText.length(), mText.length(), text, 0, text.length());
+    }
+
+    /**
+     * Replace the range [start, end) of the text with the range [sStart, sEnd) of the
+     * replacement. The arguments match the ones reported by
+     * {@code TextWatcher.onTextChanged()}: a backspace is an empty replacement
+     * of one symbol, typing is a replacement of an empty range.
+     *
+     * @param start       Start of the replaced range
+     * @param end         End of the replaced range, exclusive
+     * @param replacement Source of the new text
+     * @param sStart      Start of the new text in the replacement
+     * @param sEnd        End of the new text in the replacement, exclusive
+     */
+    public void replace(int start, int end, CharSequence replacement, int sStart, int sEnd) {
+        if (start < 0 || end < start || end > mText.length()) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end
+                    + ", length " + mText.length());
+        }
+        if (start == end && sStart == sEnd) {
+            return;
+        }
+        mText.delete(start, end);
+        mText.insert(start, replacement, sStart, sEnd);
+
+        if (end < mDependencyStart) {
+            // The edit is before anything the frame is built from, keep the frame
+            mDependencyStart += (sEnd - sStart) - (end - start);
+        } else {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * @return The length of the mirrored text
+     */
+    public int length() {
+        return mText.length();
+    }
+
+    /**
+     * Copy a range of the mirrored text.
+     *
+     * @param start     Start of the range
+     * @param end       End of the range, exclusive
+     * @param dest      The destination
+     * @param destStart Offset of the range in the destination
+     */
+    public void getChars(int start, int end, char[] dest, int destStart) {
+        mText.getChars(start, end, dest, destStart);
+    }
+
+    /**
+     * @return The number of lines of the frame for the current text
+     */
+    public int getLineCount() {
+        update();
+        return mLineCount;
+    }
+
+    /**
+     * Return where a line of the frame starts in the text, e.g. to tell how far
+     * the frame scrolled between two versions of the text.
+     *
+     * @param line Index of the line, 0 for the top line
+     * @return The offset of the first text symbol shown on the line
+     */
+    public int getLineOffset(int line) {
+        update();
+        if (line < 0 || line >= mLineCount) {
+            throw new IndexOutOfBoundsException("line " + line + ", line count " + mLineCount);
+        }
+        return mLineOffsets[mLineCount - 1 - line];
+    }
+
+    /**
+     * Return the frame for the current text. The frame is only re-rendered when an
+     * edit touched the text it depends on.
+     *
+     * @return The text to be shown on the Junior screen
+     */
+    public String getFrame() {
+        update();
+        if (mFrame == null) {
+            mFrame = new String(mFrameChars, 0, mFrameLength);
+        }
+        return mFrame;
+    }
+
+    /**
+     * Copy the frame for the current text without creating a String.
+     *
+     * @param dest The destination, at least {@link #MAX_FRAME_LENGTH} long
+     * @return The length of the frame
+     */
+    public int getFrame(char[] dest) {
+        update();
+        System.arraycopy(mFrameChars, 0, dest, 0, mFrameLength);
+        return mFrameLength;
+    }
+
+    private void update() {
+        if (mDirty) {
+            render();
+            mDirty = false;
+        }
+    }
+
+    private void render() {
+        int lineCount = 0;
+        int lineStart = LINE_LENGTH;
+        char[] line = mLines[0];
+        int pos = mText.length();
+        int floor = Math.max(0, pos - SCAN_LIMIT);
+        int scanned = floor;
+        // A frame cut short by the floor may change with any edit
+        mDependencyStart = 0;
+        // Whether the previous segment was a full line cut from the end of a
+        // token which fills the screen, the rest of the token is cut the same way
+        boolean cutFromEnd = false;
+
+        while (lineCount < NUMBER_OF_LINES) {
+            // Skip the whitespace before the previous segment
+            boolean space = false;
+            while (pos > floor && isSpace(mText.charAt(pos - 1))) {
+                pos--;
+                space = true;
+            }
+            if (pos == floor) {
+                break;
+            }
+
+            // Find the previous segment: the symbols up to the previous break
+            // opportunity, but no more than one over the screen
+            int segmentEnd = pos;
+            int start = pos - 1;
+            while (start > floor && segmentEnd - start <= NUMBER_OF_LINES * LINE_LENGTH
+                    && !isSpace(mText.charAt(start - 1))
+                    && !canBreak(mText.charAt(start - 1), mText.charAt(start))) {
+                start--;
+            }
+            int scanStart = start;
+            int tokenLength = segmentEnd - start;
+            if (tokenLength > LINE_LENGTH) {
+                // No opportunity within a line, break the token hard into full
+                // lines from its start, or from its end if it fills the screen.
+                // Only the first segment of a token sees its whole length, the
+                // scan of a long token stops one over the screen
+                boolean fillsScreen = cutFromEnd || tokenLength > NUMBER_OF_LINES * LINE_LENGTH;
+                int tail = fillsScreen ? 0 : tokenLength % LINE_LENGTH;
+                start = segmentEnd - (tail > 0 ? tail : LINE_LENGTH);
+                // Keep the surrogate pairs together
+                if (Character.isSurrogatePair(mText.charAt(start - 1), mText.charAt(start))) {
+                    start += segmentEnd - start < LINE_LENGTH ? -1 : 1;
+                }
+                cutFromEnd = fillsScreen;
+            } else {
+                cutFromEnd = false;
+            }
+            int segmentLength = segmentEnd - start;
+            int lineLength = LINE_LENGTH - lineStart;
+            int separator = space ? 1 : 0;
+
+            if (lineLength > 0 && lineLength + separator + segmentLength > LINE_LENGTH) {
+                // The line is full, the segment goes to the line above
+                mLineStarts[lineCount++] = lineStart;
+                if (lineCount == NUMBER_OF_LINES) {
+                    mDependencyStart = scanStart;
+                    scanned = scanStart;
+                    break;
+                }
+                line = mLines[lineCount];
+                lineStart = LINE_LENGTH;
+            }
+
+            if (lineStart < LINE_LENGTH && separator > 0) {
+                line[--lineStart] = ' ';
+            }
+            lineStart -= segmentLength;
+            mText.getChars(start, segmentEnd, line, lineStart);
+            mLineOffsets[lineCount] = start;
+            pos = start;
+        }
+        if (lineCount < NUMBER_OF_LINES && lineStart < LINE_LENGTH) {
+            mLineStarts[lineCount++] = lineStart;
+        }
+        mLineCount = lineCount;
+        mScanLength = mText.length() - scanned;
+
+        // Join the lines top-down, breaking the ones which don't fill the screen width
+        int length = 0;
+        for (int i = lineCount - 1; i >= 0; i--) {
+            int start = mLineStarts[i];
+            System.arraycopy(mLines[i], start, mFrameChars, length, LINE_LENGTH - start);
+            length += LINE_LENGTH - start;
+            if (i > 0 && start > 0) {
+                mFrameChars[length++] = '\n';
+            }
+        }
+
+        mFrameLength = length;
+        mFrame = null;
+    }
+
+    /**
+     * @return The number of symbols from the end of the text the last render
+     * looked at, never more than {@link #SCAN_LIMIT}
+     */
+    int getScanLength() {
+        update();
+        return mScanLength;
+    }
+
+    /**
+     * Return whether a line may break between two adjacent non-space symbols.
+     */
+    private static boolean canBreak(char before, char after) {
+        if (before < '\u2E80' && after < '\u2E80') {
+            // Neither is CJK, only whitespace breaks
+            return false;
+        }
+        if (Character.isSurrogatePair(before, after)
+                || NO_BREAK_BEFORE.indexOf(after) >= 0 || NO_BREAK_AFTER.indexOf(before) >= 0) {
+            return false;
+        }
+        return isIdeographic(before) || isIdeographic(after);
+    }
+
+    // CJK symbols, punctuation, kana, bopomofo, ideographs and the full width forms
+    private static boolean isIdeographic(char c) {
+        return (c >= '\u2E80' && c <= '\u312F')
+                || (c >= '\u3190' && c <= '\u31FF')
+                || (c >= '\u3400' && c <= '\u4DBF')
+                || (c >= '\u4E00' && c <= '\u9FFF')
+                || (c >= '\uF900' && c <= '\uFAFF')
+                || (c >= '\uFF01' && c <= '\uFF9F');
+    }
+
+    // Same set of symbols as the "\\s" regular expression class
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
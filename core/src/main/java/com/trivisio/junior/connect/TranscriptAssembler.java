@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+/**
+ * Applies the hypotheses of a {@link TextSource} to a {@link TickerLayout}.
+ * <p>
+ * The text of the layout consists of the committed text, made of the final
+ * results, and the unstable tail, the current partial result. A new partial
+ * result only replaces the part of the tail that differs from the previous one,
+ * so the revisions of the last word stay cheap edits at the end of the text. A
+ * final result replaces the tail and commits it.
+ * <p>
+ * The results may be offered from any thread and are coalesced until
+ * {@link #apply(TickerLayout)} is called on the thread owning the layout:
+ * partial results supersede each other, final results accumulate. Utterances
+ * are separated by a space.
+ */
+public class TranscriptAssembler {
+
+    // Committed text kept in the layout when the history is trimmed
+    private static final int HISTORY_LIMIT = 16 * 1024;
+    private static final int HISTORY_KEEP = 1024;
+
+    // Offered results not applied yet, guarded by this
+    private final StringBuilder mPendingFinal = new StringBuilder();
+    private final StringBuilder mPartial = new StringBuilder();
+    private boolean mPending;
+
+    // Layout side, owned by the thread calling apply()
+    private final StringBuilder mTail = new StringBuilder();
+    private final StringBuilder mNext = new StringBuilder();
+    private int mCommitted;
+
+    /**
+     * Start over with the layout as it is now: all its text is committed, the
+     * pending results are dropped.
+     *
+     * @param layout The layout the results are applied to
+     */
+    public void reset(TickerLayout layout) {
+        synchronized (this) {
+            mPendingFinal.setLength(0);
+            mPartial.setLength(0);
+            mPending = false;
+        }
+        mTail.setLength(0);
+        mCommitted = layout.length();
+    }
+
+    /**
+     * Offer a partial result.
+     *
+     * @param text The current hypothesis of the utterance in progress
+     * @return true if an apply() has to be scheduled, false if one is pending
+     */
+    public synchronized boolean offerPartial(CharSequence text) {
+        mPartial.setLength(0);
+        appendTrimmed(mPartial, text);
+        return markPending();
+    }
+
+    /**
+     * Offer a final result.
+     *
+     * @param text The final text of the utterance in progress
+     * @return true if an apply() has to be scheduled, false if one is pending
+     */
+    public synchronized boolean offerFinal(CharSequence text) {
+        int length = mPendingFinal.length();
+        if (length > 0) {
+            mPendingFinal.append(' ');
+        }
+        appendTrimmed(mPendingFinal, text);
+        if (mPendingFinal.length() == length + 1) {
+            // Nothing but the separator, drop it
+            mPendingFinal.setLength(length);
+        }
+        mPartial.setLength(0);
+        return markPending();
+    }
+
+    /**
+     * Apply the offered results to the layout.
+     *
+     * @param layout The layout, edited only through this assembler since the reset
+     * @return true if the text of the layout changed
+     */
+    public boolean apply(TickerLayout layout) {
+        int finalLength = 0;
+        synchronized (this) {
+            if (!mPending) {
+                return false;
+            }
+            mPending = false;
+            mNext.setLength(0);
+            if (mPendingFinal.length() > 0) {
+                if (mCommitted > 0) {
+                    mNext.append(' ');
+                }
+                mNext.append(mPendingFinal);
+                mPendingFinal.setLength(0);
+                finalLength = mNext.length();
+            }
+            if (mPartial.length() > 0) {
+                if (mCommitted + mNext.length() > 0) {
+                    mNext.append(' ');
+                }
+                mNext.append(mPartial);
+            }
+        }
+
+        // Only replace what differs from the previous tail
+        int common = 0;
+        int max = Math.min(mTail.length(), mNext.length());
+        while (common < max && mTail.charAt(common) == mNext.charAt(common)) {
+            common++;
+        }
+        boolean changed = common < mTail.length() || common < mNext.length();
+        if (changed) {
+            layout.replace(mCommitted + common, mCommitted + mTail.length(),
+                    mNext, common, mNext.length());
+        }
+
+        mCommitted += finalLength;
+        mTail.setLength(0);
+        mTail.append(mNext, finalLength, mNext.length());
+
+        if (mCommitted > HISTORY_LIMIT) {
+            // Drop the committed text far off the screen, the frame is kept
+            int trimmed = mCommitted - HISTORY_KEEP;
+            layout.replace(0, trimmed, "", 0, 0);
+            mCommitted -= trimmed;
+        }
+        return changed;
+    }
+
+    private boolean markPending() {
+        boolean schedule = !mPending;
+        mPending = true;
+        return schedule;
+    }
+
+    private static void appendTrimmed(StringBuilder dest, CharSequence text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        dest.append(text, start, end);
+    }
+}
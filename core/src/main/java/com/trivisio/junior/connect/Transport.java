@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trivisio.junior.connect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream link to one Junior, e.g. an RFCOMM socket. Mirrors the socket
+ * operations the connection threads use, so the threads can run over any link.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Make the connection. This is a blocking call and only returns on a
+     * successful connection or an exception; {@link #close()} aborts it.
+     *
+     * @throws IOException if the connection can't be made
+     */
+    void connect() throws IOException;
+
+    /**
+     * @return The stream of the bytes received from the device
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return The stream of the bytes sent to the device
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the link, unblocking any pending connect, read or write.
+     */
+    @Override
+    void close() throws IOException;
+}
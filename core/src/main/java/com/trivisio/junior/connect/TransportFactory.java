@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trivisio.junior.connect;
+
+/**
+ * Makes the links of a {@link ConnectionManager} to the devices, e.g. RFCOMM
+ * sockets. A device connected before may be reached on a cached channel, which
+ * skips the service lookup; when that fails the manager falls back to a lookup.
+ * The methods are called on the connection threads and under the manager
+ * monitor, so they mustn't call back into the manager.
+ */
+public interface TransportFactory {
+
+    /**
+     * Create an unconnected transport to the channel the device was found on
+     * last time.
+     *
+     * @param address The device address
+     * @return The transport, null if no channel is cached or it can't be used
+     */
+    Transport createCachedTransport(String address);
+
+    /**
+     * Create an unconnected transport which looks the service of the device up.
+     *
+     * @param address The device address
+     * @return The transport, null if it can't be created
+     */
+    Transport createTransport(String address);
+
+    /**
+     * A transport of {@link #createTransport(String)} connected: cache its
+     * channel for the next connect.
+     *
+     * @param address   The device address
+     * @param transport The connected transport
+     */
+    void onTransportConnected(String address, Transport transport);
+
+    /**
+     * A transport of {@link #createCachedTransport(String)} failed to connect:
+     * forget the cached channel, the device may have moved its service.
+     *
+     * @param address The device address
+     */
+    void onCachedTransportFailed(String address);
+
+    /**
+     * Get ready for a connect, e.g. cancel a discovery which would slow it
+     * down. Called on the connect thread.
+     *
+     * @return false if connecting isn't allowed, the attempt is dropped
+     */
+    boolean prepareConnect();
+
+    /**
+     * @param address The device address
+     * @return The name of the device, null if unknown
+     */
+    String getDeviceName(String address);
+}